@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.agent;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static no.kantega.labs.revoc.agent.Log.err;
+
+/**
+ * Keeps instrumented classes in a directory, so a restarted JVM can load unchanged classes without instrumenting them.
+ *
+ * Each entry is named by a hash of the original class bytes and a configuration string describing everything else
+ * the instrumentation depends on: the agent options, the JIT limits and the revoc build itself. A class whose bytes
+ * or configuration change simply gets a new entry. Entries are written to a temporary file and then renamed, so
+ * JVMs sharing the directory never read a partly written entry. Unreadable entries count as misses.
+ */
+class ClassCache {
+
+    /** Part of every key, change when the entry format or the instrumentation changes in an incompatible way **/
+    private static final String FORMAT = "revoc-class-cache-3";
+
+    private final File directory;
+    private final byte[] configuration;
+
+    ClassCache(File directory, String configuration) {
+        this.directory = directory;
+        String build = FORMAT;
+        CodeSource codeSource = ClassCache.class.getProtectionDomain().getCodeSource();
+        if (codeSource != null && codeSource.getLocation() != null) {
+            URL location = codeSource.getLocation();
+            File file = new File(location.getPath());
+            build += " " + location + " " + file.length() + " " + file.lastModified();
+        }
+        try {
+            this.configuration = (build + "\n" + configuration + "\n").getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            err("Could not create class cache directory " + directory);
+        }
+    }
+
+    /**
+     * @return the cached instrumentation of the class, or null if there is none
+     */
+    InstrumentedClass get(byte[] classFileBuffer) {
+        File file = getFile(classFileBuffer);
+        if (!file.isFile()) {
+            return null;
+        }
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            return (InstrumentedClass) in.readObject();
+        } catch (Exception e) {
+            err("Ignoring unreadable class cache entry " + file + ": " + e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    void put(byte[] classFileBuffer, InstrumentedClass instrumented) {
+        File file = getFile(classFileBuffer);
+        ObjectOutputStream out = null;
+        File temp = null;
+        try {
+            temp = File.createTempFile(file.getName(), ".tmp", directory);
+            out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeObject(instrumented);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file) && !file.isFile()) {
+                err("Could not write class cache entry " + file);
+            }
+        } catch (IOException e) {
+            err("Could not write class cache entry " + file + ": " + e);
+        } finally {
+            IOUtils.closeQuietly(out);
+            if (temp != null && temp.exists()) {
+                temp.delete();
+            }
+        }
+    }
+
+    private File getFile(byte[] classFileBuffer) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(configuration);
+            byte[] hash = digest.digest(classFileBuffer);
+            StringBuilder name = new StringBuilder(hash.length * 2 + 6);
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(directory, name.append(".revoc").toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
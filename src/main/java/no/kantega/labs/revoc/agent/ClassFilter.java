@@ -0,0 +1,159 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides which classes to instrument from include and exclude patterns, compiled once into a trie over
+ * internal class names. Matching a class walks the trie along its name, so the cost does not grow with the
+ * number of patterns.
+ *
+ * A pattern without wildcards is a prefix, like com.example. for a package and its sub packages. A pattern
+ * with a * matches whole names, where * matches any characters, like *Test, *$$* or com.example.*_jsp.
+ * A class is matched when some include pattern and no exclude pattern matches it. Classes of the JDK and
+ * of revoc itself are never matched.
+ */
+public class ClassFilter {
+
+    private static final String[] ALWAYS_EXCLUDED = {"no/kantega/labs/revoc/", "com/sun", "java/", "javax/", "sun/"};
+
+    private final Node root = new Node();
+
+    /**
+     * @param includes patterns of classes to match, or null to match none
+     * @param excludes patterns of classes never to match, or null
+     */
+    public ClassFilter(String[] includes, String[] excludes) {
+        if (includes != null) {
+            for (String pattern : includes) {
+                add(pattern, true);
+            }
+        }
+        if (excludes != null) {
+            for (String pattern : excludes) {
+                add(pattern, false);
+            }
+        }
+        for (String prefix : ALWAYS_EXCLUDED) {
+            add(prefix, false);
+        }
+    }
+
+    /**
+     * @param className the internal name of a class, like com/example/Foo
+     */
+    public boolean matches(String className) {
+        boolean included = false;
+        Node node = root;
+        for (int i = 0; node != null; i++) {
+            if (node.prefix == Rule.EXCLUDE) {
+                return false;
+            }
+            included |= node.prefix == Rule.INCLUDE;
+            for (Glob glob : node.globs) {
+                if (glob.matches(className, i)) {
+                    if (glob.rule == Rule.EXCLUDE) {
+                        return false;
+                    }
+                    included = true;
+                }
+            }
+            node = i < className.length() ? node.child(className.charAt(i)) : null;
+        }
+        return included;
+    }
+
+    private void add(String pattern, boolean include) {
+        pattern = pattern.replace('.', '/');
+        Rule rule = include ? Rule.INCLUDE : Rule.EXCLUDE;
+        int wildcard = pattern.indexOf('*');
+        Node node = root;
+        for (int i = 0; i < (wildcard == -1 ? pattern.length() : wildcard); i++) {
+            node = node.addChild(pattern.charAt(i));
+        }
+        if (wildcard == -1) {
+            // Excludes take precedence over includes of the same prefix
+            node.prefix = node.prefix == Rule.EXCLUDE ? Rule.EXCLUDE : rule;
+        } else {
+            node.globs.add(new Glob(pattern.substring(wildcard + 1), rule));
+        }
+    }
+
+    private enum Rule {
+        INCLUDE, EXCLUDE
+    }
+
+    private static class Node {
+        private char[] chars = new char[0];
+        private Node[] children = new Node[0];
+        private Rule prefix;
+        private final List<Glob> globs = new ArrayList<Glob>(0);
+
+        Node child(char c) {
+            for (int i = 0; i < chars.length; i++) {
+                if (chars[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node addChild(char c) {
+            Node child = child(c);
+            if (child == null) {
+                child = new Node();
+                char[] newChars = new char[chars.length + 1];
+                Node[] newChildren = new Node[chars.length + 1];
+                System.arraycopy(chars, 0, newChars, 0, chars.length);
+                System.arraycopy(children, 0, newChildren, 0, chars.length);
+                newChars[chars.length] = c;
+                newChildren[chars.length] = child;
+                chars = newChars;
+                children = newChildren;
+            }
+            return child;
+        }
+    }
+
+    /**
+     * The rest of a pattern after its first wildcard, matched against the rest of a name after the pattern's prefix
+     */
+    private static class Glob {
+        /** Literal parts between the wildcards, the last one must end the name **/
+        private final String[] parts;
+        private final Rule rule;
+
+        Glob(String afterWildcard, Rule rule) {
+            this.parts = afterWildcard.split("\\*", -1);
+            this.rule = rule;
+        }
+
+        boolean matches(String name, int from) {
+            int last = parts.length - 1;
+            for (int i = 0; i < last; i++) {
+                int found = name.indexOf(parts[i], from);
+                if (found == -1) {
+                    return false;
+                }
+                from = found + parts[i].length();
+            }
+            return name.length() - parts[last].length() >= from && name.endsWith(parts[last]);
+        }
+    }
+}
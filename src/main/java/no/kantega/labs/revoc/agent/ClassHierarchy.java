@@ -0,0 +1,156 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.agent;
+
+import org.apache.commons.io.IOUtils;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolves the class hierarchy from class file bytes, read as resources of the class loader defining a class.
+ *
+ * Unlike Class.forName, this never loads, transforms or initializes other classes while a class is being defined.
+ * The super class and interfaces of each class are cached per class loader. The cache of a class loader goes
+ * away with the class loader.
+ */
+class ClassHierarchy {
+
+    private static final String OBJECT = "java/lang/Object";
+
+    /** Marks a class whose bytes could not be read **/
+    private static final TypeInfo UNKNOWN = new TypeInfo(0, null, new String[0]);
+
+    private final Map<ClassLoader, ConcurrentMap<String, TypeInfo>> loaders = new WeakHashMap<ClassLoader, ConcurrentMap<String, TypeInfo>>();
+    private final ConcurrentMap<String, TypeInfo> bootTypes = new ConcurrentHashMap<String, TypeInfo>();
+
+    /**
+     * @return the internal name of the closest common super class of the two types, java/lang/Object if either is
+     * an interface or not found
+     */
+    String getCommonSuperClass(String type1, String type2, ClassLoader classLoader) {
+        if (type1.equals(type2)) {
+            return type1;
+        }
+        if (isAssignableFrom(type1, type2, classLoader)) {
+            return type1;
+        }
+        if (isAssignableFrom(type2, type1, classLoader)) {
+            return type2;
+        }
+        if (getTypeInfo(type1, classLoader).isInterface() || getTypeInfo(type2, classLoader).isInterface()) {
+            return OBJECT;
+        }
+        Set<String> superClasses = new HashSet<String>();
+        for (String type = type2; type != null; type = getTypeInfo(type, classLoader).superName) {
+            superClasses.add(type);
+        }
+        for (String type = type1; type != null; type = getTypeInfo(type, classLoader).superName) {
+            if (superClasses.contains(type)) {
+                return type;
+            }
+        }
+        return OBJECT;
+    }
+
+    /**
+     * @return whether type is the same as, or a super class or interface of, subType
+     */
+    boolean isAssignableFrom(String type, String subType, ClassLoader classLoader) {
+        if (type.equals(subType) || type.equals(OBJECT)) {
+            return true;
+        }
+        TypeInfo info = getTypeInfo(subType, classLoader);
+        if (info.superName != null && isAssignableFrom(type, info.superName, classLoader)) {
+            return true;
+        }
+        for (String interfaceName : info.interfaces) {
+            if (isAssignableFrom(type, interfaceName, classLoader)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private TypeInfo getTypeInfo(String type, ClassLoader classLoader) {
+        ConcurrentMap<String, TypeInfo> types = getTypes(classLoader);
+        TypeInfo info = types.get(type);
+        if (info == null) {
+            info = readTypeInfo(type, classLoader);
+            types.putIfAbsent(type, info);
+        }
+        return info;
+    }
+
+    private ConcurrentMap<String, TypeInfo> getTypes(ClassLoader classLoader) {
+        if (classLoader == null) {
+            return bootTypes;
+        }
+        synchronized (loaders) {
+            ConcurrentMap<String, TypeInfo> types = loaders.get(classLoader);
+            if (types == null) {
+                loaders.put(classLoader, types = new ConcurrentHashMap<String, TypeInfo>());
+            }
+            return types;
+        }
+    }
+
+    private static TypeInfo readTypeInfo(String type, ClassLoader classLoader) {
+        String resource = type + ".class";
+        InputStream in = classLoader == null ? ClassLoader.getSystemResourceAsStream(resource) : classLoader.getResourceAsStream(resource);
+        if (in == null) {
+            return UNKNOWN;
+        }
+        try {
+            byte[] bytes = IOUtils.toByteArray(in);
+            if (bytes.length > 8 && bytes[6] == 0 && bytes[7] > Opcodes.V1_7) {
+                // Only the header is read, which has the same layout in class files newer than the reader knows
+                bytes[7] = Opcodes.V1_7;
+            }
+            ClassReader reader = new ClassReader(bytes);
+            return new TypeInfo(reader.getAccess(), reader.getSuperName(), reader.getInterfaces());
+        } catch (IOException e) {
+            return UNKNOWN;
+        } catch (RuntimeException e) {
+            // Not a readable class file
+            return UNKNOWN;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static class TypeInfo {
+        final int access;
+        final String superName;
+        final String[] interfaces;
+
+        TypeInfo(int access, String superName, String[] interfaces) {
+            this.access = access;
+            this.superName = superName;
+            this.interfaces = interfaces;
+        }
+
+        boolean isInterface() {
+            return (access & Opcodes.ACC_INTERFACE) != 0;
+        }
+    }
+}
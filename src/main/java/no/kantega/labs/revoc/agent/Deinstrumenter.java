@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.agent;
+
+import no.kantega.labs.revoc.registry.Registry;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static no.kantega.labs.revoc.agent.Log.err;
+import static no.kantega.labs.revoc.agent.Log.log;
+
+/**
+ * Removes the probes of hit-only methods once all their lines are covered.
+ *
+ * Listens for classes with new hits and retransforms a class when one of its probed methods has become
+ * fully covered. The transformer then writes such methods back without probes, while the hits already
+ * collected stay in the Registry.
+ */
+public class Deinstrumenter implements Registry.ChangeListener {
+
+    private final Instrumentation instrumentation;
+
+    private final ConcurrentMap<Integer, ProbedClass> probedClasses = new ConcurrentHashMap<Integer, ProbedClass>();
+
+    public Deinstrumenter(Instrumentation instrumentation) {
+        this.instrumentation = instrumentation;
+    }
+
+    /**
+     * Called by the transformer each time a class has been instrumented
+     *
+     * @param methodLines the class line indexes of each method which still has probes
+     */
+    public void probesPlaced(int classId, String className, ClassLoader classLoader, List<int[]> methodLines) {
+        if (methodLines.isEmpty()) {
+            probedClasses.remove(classId);
+        } else {
+            probedClasses.put(classId, new ProbedClass(className, classLoader, methodLines));
+        }
+    }
+
+    public void onChange(BitSet bs) {
+        List<Class> covered = new ArrayList<Class>();
+        for (int classId = bs.nextSetBit(0); classId >= 0; classId = bs.nextSetBit(classId + 1)) {
+            ProbedClass probedClass = probedClasses.get(classId);
+            if (probedClass != null && probedClass.hasCoveredMethod(Registry.getLineHits(classId))) {
+                try {
+                    Class clazz = Class.forName(probedClass.className.replace('/', '.'), false, probedClass.classLoader);
+                    if (instrumentation.isModifiableClass(clazz)) {
+                        covered.add(clazz);
+                    }
+                } catch (ClassNotFoundException e) {
+                    probedClasses.remove(classId);
+                }
+            }
+        }
+        if (!covered.isEmpty()) {
+            log(String.format("Removing probes from covered methods in %s classes", covered.size()));
+            try {
+                instrumentation.retransformClasses(covered.toArray(new Class[covered.size()]));
+            } catch (Exception e) {
+                err("Could not remove probes: " + e);
+            }
+        }
+    }
+
+    private static class ProbedClass {
+        private final String className;
+        private final ClassLoader classLoader;
+        private final List<int[]> methodLines;
+
+        private ProbedClass(String className, ClassLoader classLoader, List<int[]> methodLines) {
+            this.className = className;
+            this.classLoader = classLoader;
+            this.methodLines = methodLines;
+        }
+
+        private boolean hasCoveredMethod(boolean[] hits) {
+            for (int[] lines : methodLines) {
+                boolean covered = true;
+                for (int l = 0; covered && l < lines.length; l++) {
+                    covered = hits[lines[l]];
+                }
+                if (covered) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
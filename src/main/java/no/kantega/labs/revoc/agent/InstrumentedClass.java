@@ -0,0 +1,116 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.agent;
+
+import no.kantega.labs.revoc.instrumentation.CoverageClassVisitor;
+import no.kantega.labs.revoc.registry.BranchPoint;
+import no.kantega.labs.revoc.registry.FlowGraph;
+import no.kantega.labs.revoc.registry.Registry;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The instrumented bytes of a class together with what the Registry needs to know about its lines,
+ * branches and methods. This is what the class cache stores, so a cached class needs no instrumentation.
+ */
+class InstrumentedClass implements Serializable {
+
+    /** Class id the bytes were instrumented with **/
+    final int classId;
+    final byte[] bytes;
+    /** Hash of the original class bytes, identifying the class in a counter file **/
+    final long classHash;
+    final boolean isInterface;
+    final String source;
+    final int[] lineIndexes;
+    final boolean hitOnly;
+    final boolean methodCoverage;
+    final int[][] methodLines;
+    final int sampleRate;
+    final int[][] blockLines;
+    final List<FlowGraph> flowGraphs;
+    final int numEdgeCounters;
+    final List<BranchPoint> branchPoints;
+    final List<String> methodNames;
+    final List<String> methodDescs;
+    final List<int[]> probedMethodLines;
+    final List<String> innerClasses;
+
+    InstrumentedClass(int classId, byte[] bytes, long classHash, CoverageClassVisitor visitor) {
+        this.classId = classId;
+        this.bytes = bytes;
+        this.classHash = classHash;
+        this.isInterface = visitor.isInterface();
+        this.source = visitor.getSource();
+        this.lineIndexes = visitor.getLineIndexes();
+        this.hitOnly = visitor.isHitOnly();
+        this.methodCoverage = visitor.isMethodCoverage();
+        this.methodLines = visitor.getMethodLines();
+        this.sampleRate = visitor.getSampleRate();
+        this.blockLines = visitor.getBlockLines();
+        this.flowGraphs = new ArrayList<FlowGraph>(visitor.getFlowGraphs());
+        this.numEdgeCounters = visitor.getNumEdgeCounters();
+        this.branchPoints = new ArrayList<BranchPoint>(visitor.getBranchPoints());
+        this.methodNames = new ArrayList<String>(visitor.getMethodNames());
+        this.methodDescs = new ArrayList<String>(visitor.getMethodDescs());
+        this.probedMethodLines = new ArrayList<int[]>(visitor.getProbedMethodLines());
+        this.innerClasses = new ArrayList<String>(visitor.getInnerClasses());
+    }
+
+    /**
+     * @return whether the class has lines to cover, interfaces and classes compiled without debug info have none
+     */
+    boolean hasLines() {
+        return !isInterface && lineIndexes.length > 0 && source != null;
+    }
+
+    /**
+     * Registers the class with its lines, branches and methods
+     *
+     * @return the class id the class got, which the bytes should be given
+     */
+    int register(String className, ClassLoader classLoader) {
+        int classId = Registry.registerClass(className, classLoader, source);
+        Registry.registerLines(classId, lineIndexes, classHash);
+        if (hitOnly) {
+            Registry.registerLineHits(classId);
+        }
+        if (methodCoverage) {
+            Registry.registerMethodHits(classId, methodLines);
+        }
+        if (sampleRate > 1) {
+            Registry.registerSampleRate(classId, sampleRate);
+        }
+        if (flowGraphs.isEmpty()) {
+            Registry.registerBlocks(classId, blockLines);
+        } else {
+            Registry.registerFlowGraphs(classId, blockLines, flowGraphs, numEdgeCounters);
+        }
+        Registry.registerBranchPoints(classId, branchPoints);
+        Registry.registerMethods(classId, methodNames, methodDescs);
+        return classId;
+    }
+
+    /**
+     * @return the instrumented bytes, using the given class id
+     */
+    byte[] getBytes(int classId) {
+        return classId == this.classId ? bytes : CoverageClassVisitor.relocate(bytes, classId);
+    }
+}
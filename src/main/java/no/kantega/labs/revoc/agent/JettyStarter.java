@@ -16,7 +16,7 @@ import org.eclipse.jetty.servlet.ServletContextHandler;
 public class JettyStarter {
 
 
-    public void start(int port, String[] packages) throws Exception {
+    public void start(int port, ClassFilter filter) throws Exception {
 
         Server server = new Server(port);
 
@@ -30,7 +30,7 @@ public class JettyStarter {
         collection.addHandler(new WebHandler(new CompondSourceSource(
                 new DirectorySourceSource(),
                 new MavenProjectSourceSource(),
-                new MavenSourceArtifactSourceSource()), packages));
+                new MavenSourceArtifactSourceSource()), filter));
 
 
         server.setHandler(collection);
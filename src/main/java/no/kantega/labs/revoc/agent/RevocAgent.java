@@ -16,6 +16,10 @@
 
 package no.kantega.labs.revoc.agent;
 
+import no.kantega.labs.revoc.registry.Registry;
+
+import java.io.File;
+import java.io.IOException;
 import java.lang.instrument.Instrumentation;
 import java.lang.instrument.UnmodifiableClassException;
 import java.util.ArrayList;
@@ -34,8 +38,8 @@ public class RevocAgent {
      * Run when Revoc is added as a Java Agent as a startup command line option
      */
     public static void premain(String options, Instrumentation instrumentation) throws Exception {
-        String[] packages = init(options);
-        instrumentation.addTransformer(new RevocClassTransformer(packages));
+        Properties props = init(options);
+        addTransformer(instrumentation, getClassFilter(props), props);
     }
 
 
@@ -44,49 +48,82 @@ public class RevocAgent {
      */
     public static void agentmain(String options, Instrumentation instrumentation) throws Exception {
 
-        String[] packages = init(options);
+        Properties props = init(options);
 
-        retransform(instrumentation, packages);
+        retransform(instrumentation, getClassFilter(props), props);
 
     }
 
-    private static String[] init(String options) throws Exception {
+    private static Properties init(String options) throws Exception {
         log("Configuring coverage engine");
 
         Properties props = readOptions(options);
 
         validatePackagesConfigured(props);
 
-        String[] packages = getPackagesToInstrument(props);
-
-        startJettyServer(props, packages);
+        startJettyServer(props, getClassFilter(props));
 
-        return packages;
+        return props;
     }
 
-    private static void retransform(Instrumentation instrumentation, String[] packages) throws UnmodifiableClassException {
+    private static void retransform(Instrumentation instrumentation, ClassFilter filter, Properties props) throws UnmodifiableClassException {
         List<Class> classesToInstrument = new ArrayList<Class>();
 
         for (Class clazz : instrumentation.getAllLoadedClasses()) {
-            if (RevocClassTransformer.shouldFilter(clazz.getClassLoader(), clazz.getName().replace('.', '/'), packages)) {
+            if (RevocClassTransformer.shouldFilter(clazz.getClassLoader(), clazz.getName().replace('.', '/'), filter)) {
                 classesToInstrument.add(clazz);
             }
         }
 
         log(String.format("Instrumenting %s classes", classesToInstrument.size()));
 
-        instrumentation.addTransformer(new RevocClassTransformer(packages), true);
+        addTransformer(instrumentation, filter, props);
 
         instrumentation.retransformClasses(classesToInstrument.toArray(new Class[classesToInstrument.size()]));
     }
 
-    private static String[] getPackagesToInstrument(Properties props) {
-        String[] packages = parseList(props.getProperty("packages"));
-        for (int i = 0; i < packages.length; i++) {
-            packages[i] = packages[i].replace('.', '/');
-
+    private static void addTransformer(Instrumentation instrumentation, ClassFilter filter, Properties props) {
+        String stripes = props.getProperty("stripes");
+        if (stripes != null) {
+            Registry.setCounterStripes(Integer.parseInt(stripes));
+        }
+        String counters = props.getProperty("counters");
+        if (counters != null && !countsLines(props)) {
+            err("Option 'counters' requires counting lines, without 'probes' or 'coverage', ignoring it");
+        } else if (counters != null) {
+            try {
+                boolean shared = "true".equals(props.getProperty("shared"));
+                Registry.mapCounters(new File(counters), shared);
+                log((shared ? "Adding line counters to shared file " : "Writing line counters to ") + counters);
+            } catch (IOException e) {
+                err("Cannot write line counters to " + counters + ": " + e.getMessage());
+            }
+        }
+        RevocClassTransformer transformer = new RevocClassTransformer(filter, props);
+        if ("true".equals(props.getProperty("deinstrument"))) {
+            if ("hits".equals(props.getProperty("coverage"))) {
+                log("Removing probes from covered methods");
+                Deinstrumenter deinstrumenter = new Deinstrumenter(instrumentation);
+                transformer.setDeinstrumenter(deinstrumenter);
+                Registry.addChangeListener(deinstrumenter);
+            } else {
+                err("Option 'deinstrument' requires 'coverage=hits', ignoring it");
+            }
         }
-        return packages;
+        instrumentation.addTransformer(transformer, true);
+    }
+
+    /**
+     * @return whether classes count line visits, which are the only counts kept in a counter file
+     */
+    private static boolean countsLines(Properties props) {
+        String probes = props.getProperty("probes");
+        String coverage = props.getProperty("coverage");
+        return (probes == null || "lines".equals(probes)) && !"hits".equals(coverage) && !"methods".equals(coverage);
+    }
+
+    private static ClassFilter getClassFilter(Properties props) {
+        return new ClassFilter(parseList(props.getProperty("packages")), parseList(props.getProperty("exclude")));
     }
 
     private static void validatePackagesConfigured(Properties props) {
@@ -98,14 +135,17 @@ public class RevocAgent {
         } else {
             log("Using packages pattern(s) " + packages);
         }
+        if (props.getProperty("exclude") != null) {
+            log("Excluding pattern(s) " + props.getProperty("exclude"));
+        }
     }
 
-    private static String[] parseList(String list) {
+    static String[] parseList(String list) {
         return list == null ? null : list.split("\\|");
     }
 
-    private static void startJettyServer(Properties props, String[] packages) throws Exception {
-        new JettyStarter().start(getPort(props.getProperty("port")), packages);
+    private static void startJettyServer(Properties props, ClassFilter filter) throws Exception {
+        new JettyStarter().start(getPort(props.getProperty("port")), filter);
     }
 
     private static int getPort(String port) {
@@ -125,7 +165,7 @@ public class RevocAgent {
     }
 
 
-    private static Properties readOptions(String options) {
+    static Properties readOptions(String options) {
         Properties props = new Properties();
         if (options == null) {
             return props;
@@ -17,35 +17,53 @@
 package no.kantega.labs.revoc.agent;
 
 import no.kantega.labs.revoc.instrumentation.CoverageClassVisitor;
+import no.kantega.labs.revoc.instrumentation.JitBudget;
+import no.kantega.labs.revoc.instrumentation.ProbePlacement;
+import no.kantega.labs.revoc.registry.CounterFile;
 import no.kantega.labs.revoc.registry.Registry;
 import org.apache.commons.io.IOUtils;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
 import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
 
 /**
  *
  */
 public class RevocClassTransformer implements ClassFileTransformer {
-    private final String[] packages;
+    private final ClassFilter filter;
+    private final Properties options;
+    private final JitBudget jitBudget;
+    private final ClassCache classCache;
+    private final ClassHierarchy classHierarchy = new ClassHierarchy();
+    private Deinstrumenter deinstrumenter;
 
     public RevocClassTransformer(String[] packages) {
-        this.packages = packages;
-        if (packages != null) {
-            for (int i = 0; i < packages.length; i++) {
-                this.packages[i] = packages[i].replace('.', '/');
-            }
-        }
+        this(packages, new Properties());
+    }
+
+    public RevocClassTransformer(String[] packages, Properties options) {
+        this(new ClassFilter(packages, null), options);
+    }
+
+    public RevocClassTransformer(ClassFilter filter, Properties options) {
+        this.filter = filter;
+        this.options = options;
+        this.jitBudget = "false".equals(options.getProperty("jitbudget")) ? null : JitBudget.fromRunningVm();
+        String cache = options.getProperty("cache");
+        this.classCache = cache == null ? null : new ClassCache(new File(cache), getCacheConfiguration());
     }
 
     public byte[] transform(ClassLoader classLoader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classFileBuffer) throws IllegalClassFormatException {
 
-        if (!shouldFilter(classLoader, className, packages)) {
+        if (!shouldFilter(classLoader, className, filter)) {
             return null;
         } else {
             return instrumentClass(className, classFileBuffer, classLoader);
@@ -57,51 +75,124 @@ public class RevocClassTransformer implements ClassFileTransformer {
     private byte[] instrumentClass(String className, byte[] classFileBuffer, ClassLoader classLoader) {
         byte[] returnBytes = null;
         System.out.println("Instrumenting class " + className);
-        ClassReader cr = new ClassReader(classFileBuffer);
 
         int classId = Registry.newClassId(className, classLoader);
-        ClassWriter classWriter = new ClassLoaderAwareClassWriter(cr, ClassWriter.COMPUTE_MAXS) {};
-        CoverageClassVisitor visitor = new CoverageClassVisitor(classWriter, classId);
-        ClassLoader old = Thread.currentThread().getContextClassLoader();
-        try {
-
-            Thread.currentThread().setContextClassLoader(classLoader);
-            cr.accept(visitor, ClassReader.EXPAND_FRAMES);
-
-        } catch (Exception e) {
-            System.out.println("Exception instrumenting class " + className + " from classLoader " + classLoader);
-            e.printStackTrace();
-        } finally {
-            if(old != null) {
-                Thread.currentThread().setContextClassLoader(old);
-            }
+        // Hit-only classes instrumented again leave out covered methods, which depends on more than the class bytes
+        boolean cacheable = classCache != null && !("hits".equals(options.getProperty("coverage")) && Registry.isClassRegistered(className, classLoader));
+        InstrumentedClass instrumented = cacheable ? classCache.get(classFileBuffer) : null;
+        if (instrumented == null) {
+            instrumented = instrument(className, classFileBuffer, classLoader, classId, cacheable);
         }
-        int[] lines = visitor.getLineIndexes();
-        if(visitor.isInterface()) {
+
+        if(instrumented.isInterface) {
             System.out.println("Ignoring interface " + className);
         } else if (Registry.isClassRegistered(className, classLoader) ) {
             System.out.println("Instrumenting already registered class " + className);
-            returnBytes = classWriter.toByteArray();
-        } else if ( lines.length > 0 && visitor.getSource() != null) {
-            Registry.registerClass(className, classLoader, visitor.getSource());
-            Registry.registerLines(classId, lines);
-            Registry.registerBranchPoints(classId, visitor.getBranchPoints());
-            Registry.registerMethods(classId, visitor.getMethodNames(), visitor.getMethodDescs());
-            returnBytes = classWriter.toByteArray();
+            returnBytes = instrumented.getBytes(classId);
+        } else if ( instrumented.lineIndexes.length > 0 && instrumented.source != null) {
+            // The class id may have been taken by a class registered since, if so the bytes are relocated
+            classId = instrumented.register(className, classLoader);
+            returnBytes = instrumented.getBytes(classId);
         } else {
             System.out.println("Ignoring non-debug class " + className);
         }
 
-        analyzeInnerClasses(visitor.getInnerClasses(), classLoader, className);
+        if (returnBytes != null && deinstrumenter != null && instrumented.hitOnly) {
+            deinstrumenter.probesPlaced(classId, className, classLoader, instrumented.probedMethodLines);
+        }
+
+        analyzeInnerClasses(instrumented.innerClasses, classLoader, className);
         return returnBytes;
     }
 
+    /**
+     * Instruments a class with the configured options, without registering it
+     */
+    InstrumentedClass instrument(String className, byte[] classFileBuffer, ClassLoader classLoader, int classId, boolean cacheable) {
+        ClassReader cr = new ClassReader(classFileBuffer);
+
+        ClassWriter classWriter = new ClassLoaderAwareClassWriter(cr, ClassWriter.COMPUTE_MAXS, classLoader);
+        CoverageClassVisitor visitor = new CoverageClassVisitor(classWriter, classId);
+        configureVisitor(visitor);
+        if (visitor.isHitOnly() && Registry.isClassRegistered(className, classLoader)) {
+            visitor.setCoveredLines(Registry.getHitLines(classId));
+        }
+        try {
+            visitor.prescan(cr);
+            cr.accept(visitor, ClassReader.EXPAND_FRAMES);
+            for (String downgrade : visitor.getStrategyDowngrades()) {
+                System.out.println("Downgraded instrumentation of " + downgrade);
+            }
+        } catch (Exception e) {
+            System.out.println("Exception instrumenting class " + className + " from classLoader " + classLoader);
+            e.printStackTrace();
+            cacheable = false;
+        }
+        InstrumentedClass instrumented = new InstrumentedClass(classId, classWriter.toByteArray(), CounterFile.hash(classFileBuffer), visitor);
+        if (cacheable) {
+            classCache.put(classFileBuffer, instrumented);
+        }
+        return instrumented;
+    }
+
+    /**
+     * Lets the transformer report the probes it places, so covered methods can later be retransformed without them.
+     */
+    public void setDeinstrumenter(Deinstrumenter deinstrumenter) {
+        this.deinstrumenter = deinstrumenter;
+    }
+
+    /**
+     * @return the options and limits the instrumented bytes depend on, in a stable order
+     */
+    private String getCacheConfiguration() {
+        StringBuilder configuration = new StringBuilder();
+        for (String name : new TreeSet<String>(options.stringPropertyNames())) {
+            if (!name.equals("cache") && !name.equals("packages") && !name.equals("exclude") && !name.equals("port")) {
+                configuration.append(name).append('=').append(options.getProperty(name)).append(',');
+            }
+        }
+        return configuration.append(jitBudget).toString();
+    }
+
+    private void configureVisitor(CoverageClassVisitor visitor) {
+        String probes = options.getProperty("probes");
+        if ("blocks".equals(probes)) {
+            visitor.setProbePlacement(ProbePlacement.BASIC_BLOCKS);
+        } else if ("edges".equals(probes)) {
+            visitor.setProbePlacement(ProbePlacement.EDGES);
+        }
+        if ("hits".equals(options.getProperty("coverage"))) {
+            visitor.setHitOnly(true);
+        } else if ("methods".equals(options.getProperty("coverage"))) {
+            visitor.setMethodCoverage(true);
+        }
+        if ("shared".equals(options.getProperty("exits"))) {
+            visitor.setSharedExitFlush(true);
+        }
+        if ("ignore".equals(options.getProperty("exceptions"))) {
+            visitor.setExceptionExitFlush(false);
+        }
+        String loopFlush = options.getProperty("loopflush");
+        if (loopFlush != null) {
+            visitor.setLoopFlushInterval(Integer.parseInt(loopFlush));
+        }
+        if ("exit".equals(options.getProperty("time"))) {
+            visitor.setTimeAtExit(true);
+        }
+        String sample = options.getProperty("sample");
+        if (sample != null) {
+            visitor.setSampleRate(Integer.parseInt(sample));
+        }
+        visitor.setJitBudget(jitBudget);
+    }
+
     private void analyzeInnerClasses(List<String> innerClasses, ClassLoader classLoader, String className) {
         for(String name : innerClasses) {
             if(!name.equals(className)
                     && name.startsWith(className)
                     && !Registry.isClassRegistered(name, classLoader)
-                    && shouldFilter(classLoader, name, packages)) {
+                    && shouldFilter(classLoader, name, filter)) {
                 try {
                     final byte[] bytes = IOUtils.toByteArray(classLoader.getResourceAsStream(name + ".class"));
                     instrumentClass(name, bytes, classLoader);
@@ -115,59 +206,23 @@ public class RevocClassTransformer implements ClassFileTransformer {
         }
     }
 
-    public static boolean shouldFilter(ClassLoader classLoader, String className, String[] packages) {
-        if (classLoader == null) {
-            return false;
-        }
-        if (className.startsWith("no/kantega/labs/revoc/")) {
-            return false;
-        }
-        if (className.startsWith("com/sun") ||
-                className.startsWith("java/") ||
-                className.startsWith("javax/") ||
-                className.startsWith("sun/")) {
-            return false;
-        }
-
-        if (packages != null) {
-            for (String prefix : packages) {
-                if (className.startsWith(prefix)) {
-                    return true;
-                }
-            }
-        }
-        return false;
+    public static boolean shouldFilter(ClassLoader classLoader, String className, ClassFilter filter) {
+        return classLoader != null && filter.matches(className);
     }
 
+    /**
+     * Resolves common super classes from class file bytes of the class loader, rather than by loading classes
+     */
     private class ClassLoaderAwareClassWriter extends ClassWriter {
-        public ClassLoaderAwareClassWriter(ClassReader cr, int computeFrames) {
-            super(cr, computeFrames);
-        }
-
-        protected String getCommonSuperClass(final String type1, final String type2)
-        {
-            Class<?> c, d;
-            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
-            try {
-                c = Class.forName(type1.replace('/', '.'), false, classLoader);
-                d = Class.forName(type2.replace('/', '.'), false, classLoader);
-            } catch (Exception e) {
-                throw new RuntimeException(e.toString());
-            }
-            if (c.isAssignableFrom(d)) {
-                return type1;
-            }
-            if (d.isAssignableFrom(c)) {
-                return type2;
-            }
-            if (c.isInterface() || d.isInterface()) {
-                return "java/lang/Object";
-            } else {
-                do {
-                    c = c.getSuperclass();
-                } while (!c.isAssignableFrom(d));
-                return c.getName().replace('.', '/');
-            }
+        private final ClassLoader classLoader;
+
+        public ClassLoaderAwareClassWriter(ClassReader cr, int flags, ClassLoader classLoader) {
+            super(cr, flags);
+            this.classLoader = classLoader;
+        }
+
+        protected String getCommonSuperClass(final String type1, final String type2) {
+            return classHierarchy.getCommonSuperClass(type1, type2, classLoader);
         }
     }
 }
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.agent;
+
+import no.kantega.labs.revoc.registry.CounterFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import static no.kantega.labs.revoc.agent.Log.err;
+
+/**
+ * Prints the line counters of a counter file written by a JVM running with the counters option. The file is
+ * mapped read-only, so it can be read while the JVM runs or after it has died.
+ */
+public class RevocCounters {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            err("Usage: RevocCounters <counter file>");
+            System.exit(-1);
+        }
+        print(CounterFile.open(new File(args[0])), System.out);
+    }
+
+    static void print(CounterFile counters, PrintStream out) {
+        int classCount = counters.getClassCount();
+        for (int c = 0; c < classCount; c++) {
+            int[] lines = counters.getLines(c);
+            int visited = 0;
+            for (int l = 0; l < lines.length; l++) {
+                if (counters.getVisits(c, l) > 0) {
+                    visited++;
+                }
+            }
+            out.println("Class " + counters.getClassName(c).replace('/', '.') + ": " + visited + "/" + lines.length + " lines visited");
+            for (int l = 0; l < lines.length; l++) {
+                out.println("  line " + lines[l] + ": " + counters.getVisits(c, l) + (counters.getTime(c, l) == 0 ? "" : " last at " + counters.getTime(c, l)));
+            }
+        }
+    }
+}
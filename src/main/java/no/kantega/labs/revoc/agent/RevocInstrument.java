@@ -0,0 +1,242 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.agent;
+
+import no.kantega.labs.revoc.registry.Registry;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static no.kantega.labs.revoc.agent.Log.err;
+import static no.kantega.labs.revoc.agent.Log.log;
+
+/**
+ * Instruments jars and class directories ahead of time, so a JVM can record coverage without the agent.
+ *
+ * Each jar is written to the output directory with its classes instrumented and its signature files left out,
+ * and each class directory is copied to a directory of the same name. The output directory also gets a registry
+ * file describing the instrumented classes, and a revoc-instrumentation.properties pointing to it. With the output
+ * directory on the class path, the Registry loads the registry file when the first instrumented class is initialized.
+ *
+ * The classes of each jar or directory are instrumented in parallel, then registered in the order they appear,
+ * so the same input always gives the same class ids.
+ */
+public class RevocInstrument {
+
+    static final String REGISTRY_FILE = "revoc.registry";
+    static final String PROPERTIES_FILE = "revoc-instrumentation.properties";
+
+    private final RevocClassTransformer transformer;
+    private final ClassFilter filter;
+    private final ExecutorService executor;
+
+    public RevocInstrument(Properties options, ExecutorService executor) {
+        String packages = options.getProperty("packages");
+        // Without packages, every class except those of the JDK and revoc itself is instrumented
+        this.filter = new ClassFilter(packages == null ? new String[]{""} : RevocAgent.parseList(packages), RevocAgent.parseList(options.getProperty("exclude")));
+        this.transformer = new RevocClassTransformer(filter, options);
+        this.executor = executor;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            err("Usage: RevocInstrument <options> <output directory> <jar or class directory>...");
+            err("\tThe options are those of the agent, for example packages=com.example.,coverage=hits, or - for none");
+            System.exit(-1);
+        }
+        Properties options = "-".equals(args[0]) ? new Properties() : RevocAgent.readOptions(args[0]);
+        File output = new File(args[1]);
+        List<File> inputs = new ArrayList<File>();
+        for (int i = 2; i < args.length; i++) {
+            inputs.add(new File(args[i]));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            new RevocInstrument(options, executor).instrument(inputs, output, options.getProperty("report"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Instruments the inputs into the output directory and writes the registry of all classes instrumented
+     *
+     * @param report the file a coverage report is written to when the instrumented JVM exits, or null
+     */
+    public void instrument(List<File> inputs, File output, String report) throws IOException {
+        FileUtils.forceMkdir(output);
+        for (File input : inputs) {
+            File target = new File(output, input.getName());
+            if (input.isDirectory()) {
+                instrumentDirectory(input, target);
+            } else {
+                instrumentJar(input, target);
+            }
+        }
+
+        File registry = new File(output, REGISTRY_FILE);
+        Registry.save(new FileOutputStream(registry));
+
+        Properties properties = new Properties();
+        properties.setProperty("registry", registry.getAbsolutePath());
+        if (report != null) {
+            properties.setProperty("report", report);
+        }
+        OutputStream out = new FileOutputStream(new File(output, PROPERTIES_FILE));
+        try {
+            properties.store(out, "Written by RevocInstrument");
+        } finally {
+            out.close();
+        }
+        log(String.format("Wrote registry of %s classes to %s", Registry.getCoverageData().getClassNames().length, registry));
+    }
+
+    private void instrumentJar(File jar, File target) throws IOException {
+        log("Instrumenting " + jar);
+        List<String> names = new ArrayList<String>();
+        List<byte[]> contents = new ArrayList<byte[]>();
+        ZipFile zip = new ZipFile(jar);
+        try {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                if (!entry.isDirectory() && !isSignatureFile(entry.getName())) {
+                    names.add(entry.getName());
+                    InputStream in = zip.getInputStream(entry);
+                    try {
+                        contents.add(IOUtils.toByteArray(in));
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+        } finally {
+            zip.close();
+        }
+
+        List<byte[]> instrumented = instrumentClasses(names, contents);
+
+        ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(target)));
+        try {
+            for (int i = 0; i < names.size(); i++) {
+                out.putNextEntry(new ZipEntry(names.get(i)));
+                out.write(instrumented.get(i));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void instrumentDirectory(File directory, File target) throws IOException {
+        log("Instrumenting " + directory);
+        List<String> names = new ArrayList<String>();
+        List<byte[]> contents = new ArrayList<byte[]>();
+        addFiles(directory, "", names, contents);
+
+        List<byte[]> instrumented = instrumentClasses(names, contents);
+
+        for (int i = 0; i < names.size(); i++) {
+            FileUtils.writeByteArrayToFile(new File(target, names.get(i)), instrumented.get(i));
+        }
+    }
+
+    private void addFiles(File directory, String path, List<String> names, List<byte[]> contents) throws IOException {
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                addFiles(file, path + file.getName() + "/", names, contents);
+            } else {
+                names.add(path + file.getName());
+                contents.add(FileUtils.readFileToByteArray(file));
+            }
+        }
+    }
+
+    /**
+     * Instruments the classes among the entries in parallel, then registers them in entry order
+     *
+     * @return the contents of each entry, instrumented if it is a class to instrument
+     */
+    private List<byte[]> instrumentClasses(List<String> names, List<byte[]> contents) throws IOException {
+        List<Future<InstrumentedClass>> results = new ArrayList<Future<InstrumentedClass>>();
+        for (int i = 0; i < names.size(); i++) {
+            final String className = getClassName(names.get(i));
+            final byte[] bytes = contents.get(i);
+            if (className == null) {
+                results.add(null);
+            } else {
+                results.add(executor.submit(new Callable<InstrumentedClass>() {
+                    public InstrumentedClass call() {
+                        // Registration gives the class its id, until then all classes are instrumented with id 0
+                        return transformer.instrument(className, bytes, null, 0, false);
+                    }
+                }));
+            }
+        }
+
+        List<byte[]> instrumented = new ArrayList<byte[]>();
+        for (int i = 0; i < names.size(); i++) {
+            Future<InstrumentedClass> result = results.get(i);
+            instrumented.add(result == null ? contents.get(i) : register(getClassName(names.get(i)), get(result), contents.get(i)));
+        }
+        return instrumented;
+    }
+
+    private byte[] register(String className, InstrumentedClass instrumented, byte[] original) {
+        if (!instrumented.hasLines()) {
+            return original;
+        }
+        if (Registry.isClassRegistered(className, null)) {
+            err("Leaving duplicate of class " + className + " uninstrumented");
+            return original;
+        }
+        return instrumented.getBytes(instrumented.register(className, null));
+    }
+
+    private static InstrumentedClass get(Future<InstrumentedClass> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the internal name of the class in the entry, or null if the entry is not a class to instrument
+     */
+    private String getClassName(String name) {
+        if (!name.endsWith(".class") || name.startsWith("META-INF/")) {
+            return null;
+        }
+        String className = name.substring(0, name.length() - ".class".length());
+        return RevocClassTransformer.shouldFilter(getClass().getClassLoader(), className, filter) ? className : null;
+    }
+
+    private static boolean isSignatureFile(String name) {
+        String upper = name.toUpperCase(Locale.ENGLISH);
+        return upper.startsWith("META-INF/") && (upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC"));
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.instrumentation;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+
+import java.util.*;
+
+/**
+ * The basic blocks of a method and the control flow edges between them.
+ *
+ * Building the graph inserts a probe label in front of the first instruction of each block.
+ * A block also ends at the first line following a method invocation, so that a line is only
+ * counted if the invocations on the lines before it returned normally.
+ *
+ * A block with an instruction that may throw, an invocation or an instruction throwing a runtime exception like a
+ * null dereference, has an exceptional edge to the exit. No probe can count that edge, so it is always derived.
+ * Errors from the VM itself, like running out of memory or failing to initialize a class, are not modeled.
+ */
+class ControlFlowGraph implements Opcodes {
+
+    /** Line numbers executed by each block **/
+    final List<List<Integer>> blockLineNumbers = new ArrayList<List<Integer>>();
+
+    /** Probe label in front of the first instruction of each block **/
+    final List<LabelNode> blockProbes = new ArrayList<LabelNode>();
+
+    /** Last instruction of each block, null for blocks without instructions **/
+    final List<AbstractInsnNode> blockEnds = new ArrayList<AbstractInsnNode>();
+
+    /** Edges between blocks, the exit of the method is represented by the block index getNumBlocks() **/
+    final List<Edge> edges = new ArrayList<Edge>();
+
+    private final Map<LabelNode, Integer> labelBlocks = new HashMap<LabelNode, Integer>();
+
+    /** Blocks with an instruction that may throw an exception out of the method **/
+    private final BitSet throwingBlocks = new BitSet();
+
+    private final boolean exceptionHandlers;
+
+    ControlFlowGraph(InsnList instructions, List<TryCatchBlockNode> tryCatchBlocks) {
+        exceptionHandlers = !tryCatchBlocks.isEmpty();
+        analyzeBlocks(instructions, tryCatchBlocks);
+        analyzeEdges();
+    }
+
+    /**
+     * @return a list of the ASM tree API, which ASM 4 declares raw, as a list of the elements it is known to hold
+     */
+    @SuppressWarnings("unchecked")
+    static <T> List<T> typed(List list) {
+        return list;
+    }
+
+    int getNumBlocks() {
+        return blockProbes.size();
+    }
+
+    int getExit() {
+        return getNumBlocks();
+    }
+
+    /**
+     * Edge counting relies on flow conservation. Exceptions leaving the method are exceptional edges, but exception
+     * handlers and subroutines break it.
+     */
+    boolean isFlowConserving() {
+        if (exceptionHandlers) {
+            return false;
+        }
+        for (AbstractInsnNode end : blockEnds) {
+            if (end != null && (end.getOpcode() == JSR || end.getOpcode() == RET)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void analyzeBlocks(InsnList instructions, List<TryCatchBlockNode> tryCatchBlocks) {
+        final Set<LabelNode> jumpTargets = new HashSet<LabelNode>();
+        for (int i = 0; i < instructions.size(); i++) {
+            AbstractInsnNode ins = instructions.get(i);
+            if (ins instanceof JumpInsnNode) {
+                jumpTargets.add(((JumpInsnNode) ins).label);
+            } else if (ins instanceof TableSwitchInsnNode) {
+                TableSwitchInsnNode node = (TableSwitchInsnNode) ins;
+                List<LabelNode> labels = typed(node.labels);
+                jumpTargets.add(node.dflt);
+                jumpTargets.addAll(labels);
+            } else if (ins instanceof LookupSwitchInsnNode) {
+                LookupSwitchInsnNode node = (LookupSwitchInsnNode) ins;
+                List<LabelNode> labels = typed(node.labels);
+                jumpTargets.add(node.dflt);
+                jumpTargets.addAll(labels);
+            }
+        }
+        for (TryCatchBlockNode tryCatch : tryCatchBlocks) {
+            jumpTargets.add(tryCatch.handler);
+        }
+
+        List<LabelNode> pendingTargets = new ArrayList<LabelNode>();
+        List<Integer> pendingLines = new ArrayList<Integer>();
+        boolean newBlock = true;
+        boolean newBlockAtLine = false;
+
+        for (AbstractInsnNode ins = instructions.getFirst(); ins != null; ins = ins.getNext()) {
+            if (ins instanceof LabelNode) {
+                if (jumpTargets.contains(ins)) {
+                    if (!pendingLines.isEmpty()) {
+                        // Lines only passed when falling through to the jump target get a block of their own
+                        newBlock(instructions, ins).addAll(pendingLines);
+                        pendingLines.clear();
+                    }
+                    pendingTargets.add((LabelNode) ins);
+                    newBlock = true;
+                }
+            } else if (ins instanceof LineNumberNode) {
+                pendingLines.add(((LineNumberNode) ins).line);
+                newBlock |= newBlockAtLine;
+            } else if (ins.getOpcode() >= 0) {
+                if (newBlock) {
+                    newBlock(instructions, ins);
+                    for (LabelNode target : pendingTargets) {
+                        labelBlocks.put(target, getNumBlocks() - 1);
+                    }
+                    pendingTargets.clear();
+                    newBlock = false;
+                    newBlockAtLine = false;
+                }
+                blockLineNumbers.get(getNumBlocks() - 1).addAll(pendingLines);
+                pendingLines.clear();
+                blockEnds.set(getNumBlocks() - 1, ins);
+                if (mayThrow(ins)) {
+                    throwingBlocks.set(getNumBlocks() - 1);
+                }
+
+                int opcode = ins.getOpcode();
+                if (ins instanceof JumpInsnNode
+                        || ins instanceof TableSwitchInsnNode
+                        || ins instanceof LookupSwitchInsnNode
+                        || isExit(opcode)
+                        || opcode == RET) {
+                    newBlock = true;
+                } else if (ins instanceof MethodInsnNode || ins instanceof InvokeDynamicInsnNode) {
+                    newBlockAtLine = true;
+                }
+            }
+        }
+    }
+
+    private List<Integer> newBlock(InsnList instructions, AbstractInsnNode first) {
+        LabelNode probe = new LabelNode();
+        instructions.insertBefore(first, probe);
+        blockProbes.add(probe);
+        blockEnds.add(null);
+        final List<Integer> lineNumbers = new ArrayList<Integer>();
+        blockLineNumbers.add(lineNumbers);
+        return lineNumbers;
+    }
+
+    private void analyzeEdges() {
+        // Virtual edge closing the flow from the exit back to the entry, its count is the number of invocations
+        if (getNumBlocks() > 0) {
+            edges.add(new Edge(getExit(), 0, null, null));
+        }
+        for (int b = 0; b < getNumBlocks(); b++) {
+            AbstractInsnNode end = blockEnds.get(b);
+            int opcode = end == null ? -1 : end.getOpcode();
+            if (end instanceof JumpInsnNode) {
+                LabelNode label = ((JumpInsnNode) end).label;
+                edges.add(new Edge(b, labelBlocks.get(label), end, label));
+                if (opcode != GOTO && opcode != JSR) {
+                    edges.add(new Edge(b, b + 1, null, null));
+                }
+            } else if (end instanceof TableSwitchInsnNode) {
+                TableSwitchInsnNode node = (TableSwitchInsnNode) end;
+                addSwitchEdges(b, node.dflt, ControlFlowGraph.<LabelNode>typed(node.labels), end);
+            } else if (end instanceof LookupSwitchInsnNode) {
+                LookupSwitchInsnNode node = (LookupSwitchInsnNode) end;
+                addSwitchEdges(b, node.dflt, ControlFlowGraph.<LabelNode>typed(node.labels), end);
+            } else if (isExit(opcode)) {
+                edges.add(new Edge(b, getExit(), null, null));
+            } else if (opcode != RET && b + 1 < getNumBlocks()) {
+                edges.add(new Edge(b, b + 1, null, null));
+            }
+            if (throwingBlocks.get(b)) {
+                edges.add(new Edge(b, getExit(), true));
+            }
+        }
+    }
+
+    private void addSwitchEdges(int block, LabelNode dflt, List<LabelNode> labels, AbstractInsnNode end) {
+        Map<Integer, LabelNode> targets = new LinkedHashMap<Integer, LabelNode>();
+        targets.put(labelBlocks.get(dflt), dflt);
+        for (LabelNode label : labels) {
+            if (!targets.containsKey(labelBlocks.get(label))) {
+                targets.put(labelBlocks.get(label), label);
+            }
+        }
+        for (Map.Entry<Integer, LabelNode> target : targets.entrySet()) {
+            edges.add(new Edge(block, target.getKey(), end, target.getValue()));
+        }
+    }
+
+    /**
+     * @return the block starting at the given label
+     */
+    Integer getBlock(LabelNode label) {
+        return labelBlocks.get(label);
+    }
+
+    /**
+     * Selects the edges that need a counter. The edges of a maximal spanning tree can be derived from the others
+     * using flow conservation. Edges are weighted by loop nesting depth, so the edges of hot loops end up in the tree.
+     * Exceptional edges go into the tree first. They all lead to the exit from different blocks, so they never close
+     * a cycle. The virtual edge goes next, it is only counted when the entry block may throw.
+     *
+     * @return the edges outside of the spanning tree
+     */
+    List<Edge> getCountedEdges() {
+        final int[] depth = new int[getNumBlocks() + 1];
+        for (Edge edge : edges) {
+            if (edge.source != getExit() && edge.target <= edge.source) {
+                for (int b = edge.target; b <= edge.source; b++) {
+                    depth[b]++;
+                }
+            }
+        }
+
+        List<Edge> sorted = new ArrayList<Edge>(edges);
+        Collections.sort(sorted, new Comparator<Edge>() {
+            public int compare(Edge a, Edge b) {
+                long wa = weight(a, depth);
+                long wb = weight(b, depth);
+                return wa > wb ? -1 : wa < wb ? 1 : 0;
+            }
+        });
+
+        int[] components = new int[getNumBlocks() + 1];
+        for (int i = 0; i < components.length; i++) {
+            components[i] = i;
+        }
+        List<Edge> counted = new ArrayList<Edge>();
+        for (Edge edge : sorted) {
+            int a = find(components, edge.source);
+            int b = find(components, edge.target);
+            if (a == b) {
+                counted.add(edge);
+            } else {
+                components[a] = b;
+            }
+        }
+        // Keep instruction order, so counters of a method are numbered predictably
+        List<Edge> ordered = new ArrayList<Edge>();
+        for (Edge edge : edges) {
+            if (counted.contains(edge)) {
+                ordered.add(edge);
+            }
+        }
+        return ordered;
+    }
+
+    private long weight(Edge edge, int[] depth) {
+        if (edge.exceptional) {
+            return Long.MAX_VALUE;
+        }
+        if (edge.source == getExit()) {
+            return Long.MAX_VALUE - 1;
+        }
+        long weight = 1L << (3 * Math.min(depth[edge.source], 20));
+        // Prefer counting edges that do not need a trampoline
+        return edge.needsTrampoline() ? weight * 2 + 1 : weight * 2;
+    }
+
+    private int find(int[] components, int i) {
+        while (components[i] != i) {
+            i = components[i] = components[components[i]];
+        }
+        return i;
+    }
+
+    private static boolean isExit(int opcode) {
+        return (opcode >= IRETURN && opcode <= RETURN) || opcode == ATHROW;
+    }
+
+    /**
+     * @return whether the instruction may throw an exception other than by athrow, which always leaves the block
+     */
+    private static boolean mayThrow(AbstractInsnNode ins) {
+        if (ins instanceof MethodInsnNode || ins instanceof InvokeDynamicInsnNode) {
+            return true;
+        }
+        int opcode = ins.getOpcode();
+        switch (opcode) {
+            case GETFIELD: case PUTFIELD: case ARRAYLENGTH:
+            case IDIV: case LDIV: case IREM: case LREM:
+            case CHECKCAST: case NEWARRAY: case ANEWARRAY: case MULTIANEWARRAY:
+            case MONITORENTER: case MONITOREXIT:
+                return true;
+            default:
+                return (opcode >= IALOAD && opcode <= SALOAD) || (opcode >= IASTORE && opcode <= SASTORE);
+        }
+    }
+
+    /**
+     * A control flow edge. Jump is the jump or switch instruction taking the edge to the target label,
+     * both are null for fall through and exit edges. An exceptional edge is an exception leaving the method.
+     */
+    static class Edge {
+        final int source;
+        final int target;
+        final AbstractInsnNode jump;
+        final LabelNode targetLabel;
+        final boolean exceptional;
+
+        Edge(int source, int target, AbstractInsnNode jump, LabelNode targetLabel) {
+            this.source = source;
+            this.target = target;
+            this.jump = jump;
+            this.targetLabel = targetLabel;
+            this.exceptional = false;
+        }
+
+        Edge(int source, int target, boolean exceptional) {
+            this.source = source;
+            this.target = target;
+            this.jump = null;
+            this.targetLabel = null;
+            this.exceptional = exceptional;
+        }
+
+        /**
+         * Conditional jumps and switches share their instruction with other edges,
+         * counting them means redirecting the jump through a trampoline
+         */
+        boolean needsTrampoline() {
+            return jump != null && jump.getOpcode() != GOTO;
+        }
+    }
+}
@@ -17,10 +17,15 @@
 package no.kantega.labs.revoc.instrumentation;
 
 import no.kantega.labs.revoc.registry.BranchPoint;
+import no.kantega.labs.revoc.registry.FlowGraph;
 import no.kantega.labs.revoc.registry.Registry;
 import org.objectweb.asm.*;
 import org.objectweb.asm.commons.AdviceAdapter;
 import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.Frame;
 
 import java.util.*;
 
@@ -29,6 +34,15 @@ import java.util.*;
  */
 public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
 
+    /** Synthetic constant field holding the class id in instrumented classes **/
+    static final String CLASS_ID_FIELD = "revoc_classId";
+
+    /** Synthetic constant field holding the number of scratch buffer slots used by the class **/
+    static final String SCRATCH_SLOTS_FIELD = "revoc_scratchSlots";
+
+    /** Synthetic field holding the first scratch buffer slot of the class, allocated when the class is initialized **/
+    static final String FIRST_SCRATCH_SLOT_FIELD = "revoc_firstScratchSlot";
+
     /** Representing this class with an integer which can be used as an array index **/
     private final int classId;
 
@@ -44,6 +58,9 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
     private String source;
     private String className;
 
+    /** Class file version, frames are kept up to date in class files from Java 6 on **/
+    private int version;
+
     private boolean trackLines = true;
     private boolean trackTime = true;
     private boolean trackBranches = false;
@@ -55,6 +72,75 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
     private List<String> methodDescs = new ArrayList<String>();
     private boolean staticInjected = false;
 
+    private ProbePlacement probePlacement = ProbePlacement.LINES;
+
+    /** Only record whether each line was executed, using plain stores to a boolean array **/
+    private boolean hitOnly = false;
+
+    /** Only record when each method was last invoked, with a single probe at method entry **/
+    private boolean methodCoverage = false;
+
+    /** Class line indexes of each method, in the order of methodNames, when recording method coverage **/
+    private final List<int[]> methodLines = new ArrayList<int[]>();
+
+    /** Loop iterations between checks whether a loop should register the visits counted so far, 0 to never check **/
+    private int loopFlushInterval = 0;
+
+    /** Loop headers of the method being instrumented where the visits counted so far may be registered **/
+    private Set<Label> methodLoopHeaders = Collections.emptySet();
+
+    /** Read the time once when a method registers its visits, rather than after each invocation it makes **/
+    private boolean timeAtExit = false;
+
+    /** Register the visits of invocations ending with an exception, using a catch-all handler around the method **/
+    private boolean exceptionExitFlush = true;
+
+    /** Some instruction of the method being instrumented may throw, so it needs the catch-all handler **/
+    private boolean methodCanThrow = true;
+
+    /** The method being instrumented uses subroutines, which rule out frames **/
+    private boolean methodHasSubroutines;
+
+    /** Route all returns of a method through one shared block registering the visits **/
+    private boolean sharedExitFlush = false;
+
+    /** Only 1 in sampleRate invocations of a method registers its visits **/
+    private int sampleRate = 1;
+
+    /** Line numbers already hit, methods having only such lines are left without probes in hit-only mode **/
+    private BitSet coveredLines;
+
+    /** Class line indexes of each method that got line probes **/
+    private final List<int[]> probedMethodLines = new ArrayList<int[]>();
+
+    /** Class line indexes executed by each basic block, indexed by class block index **/
+    private final List<int[]> blockLines = new ArrayList<int[]>();
+
+    /** Describes how block visits are derived from the edge counters of each method **/
+    private final List<FlowGraph> flowGraphs = new ArrayList<FlowGraph>();
+    private int numEdgeCounters = 0;
+
+    /** Maps the probe labels in the method being instrumented to their index in the class probe counters **/
+    private Map<Label, Integer> methodProbes;
+
+    /** Branch visits of the method being instrumented are derived from edge counters **/
+    private boolean methodBranchesDerived;
+
+    /** Size limits the instrumented methods should stay within, or null to always use the configured strategy **/
+    private JitBudget jitBudget;
+
+    /** How the method being instrumented is probed **/
+    private MethodStrategy methodStrategy = MethodStrategy.LOCALS;
+
+    /** Scans of the methods of the class by name and descriptor, when it was scanned before being instrumented **/
+    private Map<String, MethodScan> methodScans;
+
+    /** Scratch buffer slots used by the methods instrumented so far **/
+    private int numScratchSlots = 0;
+
+    /** Methods instrumented with a cheaper strategy than configured, to stay within the JIT budget **/
+    private final List<String> strategyDowngrades = new ArrayList<String>();
+
     public CoverageClassVisitor(ClassVisitor classVisitor, int classId) {
         super(ASM4, classVisitor);
         this.classId = classId;
@@ -63,6 +149,7 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
     @Override
     public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
         super.visit(version, access, name, signature, superName, interfaces);
+        this.version = version & 0xFFFF;
         className = name;
         this.access = access;
     }
@@ -90,8 +177,35 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
             return mv;
         }
 
-        return new FirstPassAnalysis(mv, access, name, desc, signature, exceptions);
+        MethodScan scan = methodScans != null ? methodScans.get(name + desc) : null;
+        if (scan != null && !needsTree(scan)) {
+            return new FirstPassAnalysis(mv, access, name, desc, scan, null).instrument();
+        }
+        return new MethodTree(mv, access, name, desc, signature, exceptions);
+
+    }
+
+    /**
+     * Scans the methods of the class before it is instrumented, so methods needing no control flow analysis
+     * can be instrumented as they are read, rather than from a tree of their instructions.
+     */
+    public void prescan(final ClassReader reader) {
+        methodScans = new HashMap<String, MethodScan>();
+        reader.accept(new ClassVisitor(ASM4) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                MethodScan scan = new MethodScan(reader.getClassName(), access);
+                methodScans.put(name + desc, scan);
+                return scan;
+            }
+        }, ClassReader.SKIP_FRAMES);
+    }
 
+    /**
+     * Probes on basic blocks or edges and loop flushes need the control flow of the method
+     */
+    private boolean needsTree(MethodScan scan) {
+        return !hitOnly && (probePlacement != ProbePlacement.LINES || (loopFlushInterval > 0 && scan.hasBackwardJumps()));
     }
 
     @Override
@@ -99,6 +213,27 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
 
         FieldVisitor fv = super.visitField(ACC_PRIVATE + ACC_STATIC + ACC_SYNTHETIC + ACC_FINAL, "revoc_counters", "Ljava/util/concurrent/atomic/AtomicLongArray;", null, null);
         fv.visitEnd();
+        if(tracksProbeTimes()) {
+            fv = super.visitField(ACC_PRIVATE + ACC_STATIC + ACC_SYNTHETIC + ACC_FINAL, "revoc_times", "Ljava/util/concurrent/atomic/AtomicLongArray;", null, null);
+            fv.visitEnd();
+        }
+        fv = super.visitField(ACC_PRIVATE + ACC_STATIC + ACC_SYNTHETIC + ACC_FINAL, CLASS_ID_FIELD, "I", null, classId);
+        fv.visitEnd();
+        fv = super.visitField(ACC_PRIVATE + ACC_STATIC + ACC_SYNTHETIC + ACC_FINAL, SCRATCH_SLOTS_FIELD, "I", null, numScratchSlots);
+        fv.visitEnd();
+        fv = super.visitField(ACC_PRIVATE + ACC_STATIC + ACC_SYNTHETIC + ACC_FINAL, FIRST_SCRATCH_SLOT_FIELD, "I", null, null);
+        fv.visitEnd();
+        if(hitOnly) {
+            fv = super.visitField(ACC_PRIVATE + ACC_STATIC + ACC_SYNTHETIC + ACC_FINAL, "revoc_hits", "[Z", null, null);
+            fv.visitEnd();
+        }
+        if(methodCoverage) {
+            fv = super.visitField(ACC_PRIVATE + ACC_STATIC + ACC_SYNTHETIC + ACC_FINAL, "revoc_methods", "[J", null, null);
+            fv.visitEnd();
+        } else if(trackBranches) {
+            fv = super.visitField(ACC_PRIVATE + ACC_STATIC + ACC_SYNTHETIC + ACC_FINAL, "revoc_branches", "Ljava/util/concurrent/atomic/AtomicLongArray;", null, null);
+            fv.visitEnd();
+        }
         if(!staticInjected) {
             MethodVisitor mv = super.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
             mv.visitCode();
@@ -110,15 +245,95 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
         super.visitEnd();
     }
 
+    /**
+     * Fetches the counters of the class from the Registry once, when the class is initialized
+     */
     private void visitFetchRevocCounter(MethodVisitor mv) {
-        mv.visitFieldInsn(GETSTATIC, "no/kantega/labs/revoc/registry/Registry", "lineVisits", "[Ljava/util/concurrent/atomic/AtomicLongArray;");
-        mv.visitLdcInsn(classId);
-        mv.visitInsn(AALOAD);
+        visitClassId(mv);
+        mv.visitMethodInsn(INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", probeVisitsMethod(), "(I)Ljava/util/concurrent/atomic/AtomicLongArray;");
         mv.visitFieldInsn(PUTSTATIC, className, "revoc_counters", "Ljava/util/concurrent/atomic/AtomicLongArray;");
+        if(tracksProbeTimes()) {
+            visitClassId(mv);
+            mv.visitMethodInsn(INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", probeTimesMethod(), "(I)Ljava/util/concurrent/atomic/AtomicLongArray;");
+            mv.visitFieldInsn(PUTSTATIC, className, "revoc_times", "Ljava/util/concurrent/atomic/AtomicLongArray;");
+        }
+        mv.visitFieldInsn(GETSTATIC, className, SCRATCH_SLOTS_FIELD, "I");
+        mv.visitMethodInsn(INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", "newScratchSlots", "(I)I");
+        mv.visitFieldInsn(PUTSTATIC, className, FIRST_SCRATCH_SLOT_FIELD, "I");
+        if(hitOnly) {
+            visitClassId(mv);
+            mv.visitMethodInsn(INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", "getLineHits", "(I)[Z");
+            mv.visitFieldInsn(PUTSTATIC, className, "revoc_hits", "[Z");
+        }
+        if(methodCoverage) {
+            visitClassId(mv);
+            mv.visitMethodInsn(INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", "getMethodVisitTimes", "(I)[J");
+            mv.visitFieldInsn(PUTSTATIC, className, "revoc_methods", "[J");
+        } else if(trackBranches) {
+            visitClassId(mv);
+            mv.visitMethodInsn(INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", "getBranchVisits", "(I)Ljava/util/concurrent/atomic/AtomicLongArray;");
+            mv.visitFieldInsn(PUTSTATIC, className, "revoc_branches", "Ljava/util/concurrent/atomic/AtomicLongArray;");
+        }
+    }
+
+    /**
+     * Pushes the class id, read from a constant field so the instrumented bytes can be given another id
+     * by only rewriting the field's constant value.
+     */
+    private void visitClassId(MethodVisitor mv) {
+        mv.visitFieldInsn(GETSTATIC, className, CLASS_ID_FIELD, "I");
+    }
+
+    /**
+     * @return the instrumented class bytes with the class id replaced, copying the methods as they are
+     */
+    public static byte[] relocate(byte[] instrumentedBytes, final int classId) {
+        ClassReader cr = new ClassReader(instrumentedBytes);
+        ClassWriter cw = new ClassWriter(cr, 0);
+        cr.accept(new ClassVisitor(ASM4, cw) {
+            @Override
+            public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+                return super.visitField(access, name, desc, signature, CLASS_ID_FIELD.equals(name) ? classId : value);
+            }
+        }, 0);
+        return cw.toByteArray();
+    }
+
+    /**
+     * The Registry method getting the per class probe counters, one counter per line or per basic block
+     */
+    private String probeVisitsMethod() {
+        switch (probePlacement) {
+            case BASIC_BLOCKS: return "getBlockVisits";
+            case EDGES: return "getEdgeVisits";
+            default: return "getLineVisits";
+        }
+    }
+
+    private String probeTimesMethod() {
+        switch (probePlacement) {
+            case BASIC_BLOCKS: return "getBlockTimes";
+            case EDGES: return "getEdgeTimes";
+            default: return "getLineTimes";
+        }
     }
 
+    /**
+     * Methods may track probe times unless the class only records hits or method invocations
+     */
+    private boolean tracksProbeTimes() {
+        return trackTime && !hitOnly && !methodCoverage;
+    }
+
+    /**
+     * Methods of class files with StackMapTable frames keep them valid as they are instrumented
+     */
     protected MethodVisitor createSecondPassAnalyzer(int classId, Map<Integer, Integer> classLineNumbers, Map<Integer, Integer> methodLineNumbers, Map<Integer, Integer> branchPoints, int reportLoad, MethodVisitor mv, int access, String name, String desc) {
-        return new SecondPassInstrumentation(classId, classLineNumbers, methodLineNumbers, branchPoints, reportLoad, mv, access, name, desc);
+        InstrumentationFrames frames = null;
+        if (version >= V1_6 && !methodHasSubroutines) {
+            mv = frames = new InstrumentationFrames(className, access, name, desc, mv);
+        }
+        return new SecondPassInstrumentation(classId, classLineNumbers, methodLineNumbers, methodProbes, branchPoints, reportLoad, mv, frames, access, name, desc);
     }
 
     public int getClassId() {
@@ -133,96 +348,572 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
         this.trackBranches = trackBranches;
     }
 
+    public void setProbePlacement(ProbePlacement probePlacement) {
+        this.probePlacement = probePlacement;
+    }
+
     /**
-     * Runs a first pass of the code such that instrumentation can be done on the basis of class analysis.
+     * Hit-only coverage records whether a line was executed, not how many times or when. Lines are always probed,
+     * each probe is a plain store to the class' boolean array with nothing to flush when the method exits.
+     * Time tracking and probe placement are ignored in this mode.
+     */
+    public void setHitOnly(boolean hitOnly) {
+        this.hitOnly = hitOnly;
+    }
+
+    public boolean isHitOnly() {
+        return hitOnly;
+    }
+
+    /**
+     * Method coverage records only when each method was last invoked. The single probe at method entry stores the
+     * current time in the class' method array, there are no line counters, no exit flush and no catch-all handler.
+     * All other instrumentation options are ignored in this mode.
+     */
+    public void setMethodCoverage(boolean methodCoverage) {
+        this.methodCoverage = methodCoverage;
+    }
+
+    public boolean isMethodCoverage() {
+        return methodCoverage;
+    }
+
+    /**
+     * Stamps every line visited by a method invocation with the time the visits are registered. The time is read
+     * once per invocation instead of after each call the method makes and before each return, and probes no
+     * longer copy it into a time local per line. Visit times get later by at most the duration of the invocation.
+     */
+    public void setTimeAtExit(boolean timeAtExit) {
+        this.timeAtExit = timeAtExit;
+    }
+
+    /**
+     * Lets methods that loop for a long time, or forever, register their visits while still running. Every
+     * loopFlushInterval iterations the loop header checks whether the registry time has moved since the last
+     * registration, and if so registers the visits counted so far. The check is a local countdown, with no
+     * volatile reads or atomic updates per iteration.
+     */
+    public void setLoopFlushInterval(int loopFlushInterval) {
+        this.loopFlushInterval = loopFlushInterval;
+    }
+
+    /**
+     * Without an exception exit flush, methods get no catch-all handler and invocations ending with an exception
+     * never register the visits they counted in local variables. Visits counted in scratch arrays are kept and
+     * registered by the next invocation of the method on the same thread. Profiled methods keep the handler, which
+     * also ends the profiling frame. Methods with no instruction that can throw never get the handler.
+     */
+    public void setExceptionExitFlush(boolean exceptionExitFlush) {
+        this.exceptionExitFlush = exceptionExitFlush;
+    }
+
+    /**
+     * With a shared exit flush, each return stores its value and jumps to a single block that registers the
+     * visits and returns. Instrumented code then grows with the number of lines rather than lines times exits.
+     */
+    public void setSharedExitFlush(boolean sharedExitFlush) {
+        this.sharedExitFlush = sharedExitFlush;
+    }
+
+    /**
+     * Samples 1 in sampleRate method invocations on each thread. Unsampled invocations still count in their
+     * locals, but skip registering line and branch visits when the method exits. Hit-only coverage is never sampled.
+     */
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    public int getSampleRate() {
+        return hitOnly || methodCoverage ? 1 : sampleRate;
+    }
+
+    /**
+     * With a JIT budget, the instrumented size of each method is estimated up front. A method that fits within
+     * an inlining or compilation limit before instrumentation gets the cheapest probe strategy keeping it there:
+     * local variables, a shared exit flush, and then scratch arrays. Time and branch counts are only given up
+     * to keep a method below the huge method limit, which would leave it interpreted. Hit-only probes are
+     * already as small as they get.
+     */
+    public void setJitBudget(JitBudget jitBudget) {
+        this.jitBudget = jitBudget;
+    }
+
+    /**
+     * @return a description of each method instrumented with a cheaper strategy than configured
+     */
+    public List<String> getStrategyDowngrades() {
+        return strategyDowngrades;
+    }
+
+    /**
+     * Sets the lines already hit when a hit-only class is transformed again. Methods where every line is
+     * covered have nothing left to record and are written back without probes. The static initializer is
+     * always instrumented, so the class keeps the same fields and methods as when it was first transformed.
+     */
+    public void setCoveredLines(BitSet coveredLines) {
+        this.coveredLines = coveredLines;
+    }
+
+    /**
+     * Builds the tree of a method's instructions, for the first pass to analyze and then replay
      */
-    class FirstPassAnalysis extends MethodNode {
+    class MethodTree extends MethodNode {
 
         private final MethodVisitor mv;
 
-        public FirstPassAnalysis(MethodVisitor mv, int access, String name, String desc, String signature, String[] exceptions) {
+        public MethodTree(MethodVisitor mv, int access, String name, String desc, String signature, String[] exceptions) {
             super(access, name, desc, signature, exceptions);
             this.mv = mv;
         }
 
         @Override
         public void visitEnd() {
+            // Scans the instruction list only, as accepting the method node would reset its labels
+            MethodScan scan = new MethodScan(className, access);
+            instructions.accept(scan);
+            scan.visitMaxs(maxStack, maxLocals);
+            accept(new FirstPassAnalysis(mv, access, name, desc, scan, this).instrument());
+        }
+    }
 
+    /**
+     * Runs a first pass of the code such that instrumentation can be done on the basis of class analysis.
+     */
+    class FirstPassAnalysis {
 
-            final Map<Integer, Integer> methodLineNumbers = analyzeLinePoints(instructions);
-
-            final Map<Integer, Integer> branchPoints = analyzeBranchPoints(instructions);
+        private final MethodVisitor mv;
+        private final int access;
+        private final String name;
+        private final String desc;
+        private final MethodScan scan;
+        /** The instructions of the method, or null if it needs no control flow analysis and is instrumented as it is read **/
+        private final MethodNode tree;
 
-            int numExitPoints = countExitPoints(instructions);
-            int reportLoad = (methodLineNumbers.size() + branchPoints.size()) * numExitPoints;
+        FirstPassAnalysis(MethodVisitor mv, int access, String name, String desc, MethodScan scan, MethodNode tree) {
+            this.mv = mv;
+            this.access = access;
+            this.name = name;
+            this.desc = desc;
+            this.scan = scan;
+            this.tree = tree;
+        }
 
-            accept(createSecondPassAnalyzer(classId, classLineNumbers, methodLineNumbers, branchPoints, reportLoad, mv, access, name, desc));
+        /**
+         * @return the visitor instrumenting the method
+         */
+        MethodVisitor instrument() {
+            MethodVisitor instrumentation = selectInstrumentation();
             methodNames.add(name);
             methodDescs.add(desc);
+            return instrumentation;
+        }
+
+        private MethodVisitor selectInstrumentation() {
+
+            final int originalSize = scan.getCodeSize();
+
+            final Map<Integer, Integer> methodLineNumbers = analyzeLinePoints();
+
+            if (methodCoverage) {
+                methodLines.add(toClassLineIndexes(methodLineNumbers));
+                InstrumentationFrames frames = null;
+                MethodVisitor target = mv;
+                if (version >= V1_6 && !scan.hasSubroutines()) {
+                    target = frames = new InstrumentationFrames(className, access, name, desc, mv);
+                }
+                return new MethodEntryInstrumentation(target, frames, methodNames.size(), name, access);
+            }
+
+            final Map<Integer, Integer> branchPoints = analyzeBranchPoints();
+
+            if (isCovered(methodLineNumbers.keySet())) {
+                return mv;
+            }
+            if (isRemovable() && !methodLineNumbers.isEmpty()) {
+                probedMethodLines.add(toClassLineIndexes(methodLineNumbers));
+            }
+
+            methodLoopHeaders = loopFlushInterval > 0 && !hitOnly && tree != null ? analyzeLoopHeaders() : Collections.<Label>emptySet();
+
+            methodProbes = null;
+            methodBranchesDerived = false;
+            if (probePlacement != ProbePlacement.LINES && !hitOnly) {
+                ControlFlowGraph graph = new ControlFlowGraph(tree.instructions, ControlFlowGraph.<TryCatchBlockNode>typed(tree.tryCatchBlocks));
+                int firstBlock = addBlocks(graph);
+                if (probePlacement == ProbePlacement.BASIC_BLOCKS) {
+                    methodProbes = placeBlockProbes(graph, firstBlock);
+                } else if (graph.isFlowConserving() && graph.getCountedEdges().size() <= graph.getNumBlocks() && !"<init>".equals(name)) {
+                    methodProbes = placeEdgeProbes(graph, firstBlock, branchPoints);
+                    methodBranchesDerived = true;
+                } else {
+                    methodProbes = placeBlockCounters(graph, firstBlock);
+                }
+            }
+
+            methodCanThrow = scan.canThrow();
+            methodHasSubroutines = scan.hasSubroutines();
+
+            int numExitPoints = scan.getNumExitPoints();
+            int reportLoad = (methodLineNumbers.size() + branchPoints.size()) * numExitPoints;
+
+            methodStrategy = selectStrategy(originalSize, methodLineNumbers, branchPoints, reportLoad);
+
+            return createSecondPassAnalyzer(classId, classLineNumbers, methodLineNumbers, branchPoints, reportLoad, mv, access, name, desc);
+        }
 
 
 
+        /**
+         * Picks the first strategy, from the configured one and down, whose estimated size stays within the limits
+         * the original method is within. Failing that, the first strategy staying below the huge method limit, or
+         * else the cheapest strategy. A method is never left uninstrumented, as its lines would be reported as not
+         * visited.
+         */
+        private MethodStrategy selectStrategy(int originalSize, Map<Integer, Integer> methodLineNumbers, Map<Integer, Integer> branchPoints, int reportLoad) {
+            MethodStrategy[] strategies = MethodStrategy.values();
+            if (jitBudget == null || hitOnly) {
+                return strategies[0];
+            }
+
+            // Probes on blocks and edges may have added trampolines
+            int size = tree != null ? JitBudget.codeSize(tree.instructions) : originalSize;
+            int numProbes = methodProbes != null ? new HashSet<Integer>(methodProbes.values()).size() : methodLineNumbers.size();
+            int numProbeSites = methodProbes != null ? methodProbes.size() : scan.getLineNumbers().size();
+            int numBranches = trackBranches && !methodBranchesDerived ? branchPoints.size() : 0;
+
+            int[] sizes = new int[strategies.length];
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = estimateSize(strategies[i], reportLoad, size, numProbes, numProbeSites, numBranches);
+            }
+            String crossed = jitBudget.getCrossedLimit(originalSize, sizes[0]);
+            if (crossed == null) {
+                return strategies[0];
+            }
+
+            MethodStrategy selected = null;
+            for (int i = 0; i < sizes.length && selected == null; i++) {
+                if (!strategies[i].isLossy() && jitBudget.getCrossedLimit(originalSize, sizes[i]) == null) {
+                    selected = strategies[i];
+                }
+            }
+            for (int i = 0; i < sizes.length && selected == null; i++) {
+                if (!jitBudget.crossesHugeMethodLimit(originalSize, sizes[i])) {
+                    selected = strategies[i];
+                }
+            }
+            String note = "";
+            if (selected == null) {
+                selected = strategies[strategies.length - 1];
+                note = ", which still exceeds the huge method limit";
+            }
+            if (selected != strategies[0]) {
+                strategyDowngrades.add(className.replace('/', '.') + "." + name + desc + ": estimated " + sizes[0]
+                        + " bytes exceeds " + crossed + ", using " + selected.description + note);
+            }
+            return selected;
         }
 
+        /**
+         * Estimates the code size of the method when instrumented with the given strategy. The configured array mode
+         * and shared exit flush apply on top of the strategy, like they do in the second pass.
+         */
+        private int estimateSize(MethodStrategy strategy, int reportLoad, int size, int numProbes, int numProbeSites, int numBranches) {
+            boolean countLines = trackLines && !hitOnly;
+            boolean timing = trackTime && strategy.trackTime;
+            boolean probeTiming = timing && !timeAtExit;
+            boolean localVariables = strategy.localVariables && reportLoad <= maxLocalVariableReportLoad;
+            int probes = countLines ? numProbes : 0;
+            int probeSites = countLines ? numProbeSites : 0;
+            int branches = strategy.countBranches ? numBranches : 0;
+            int classIdSize = 3;
+
+            int probeIndexes = 0;
+            for (int i = 0; i < probes; i++) {
+                probeIndexes += JitBudget.constantSize(i);
+            }
+            int branchIndexes = 0;
+            for (int i = 0; i < branches; i++) {
+                branchIndexes += JitBudget.constantSize(i);
+            }
+            int siteIndexes = probes == 0 ? 0 : probeIndexes * probeSites / probes;
+
+            int var = JitBudget.varInsnSize(scan.getMaxLocals() + 2 + (timing ? 3 : 1) * probes + 2 * branches);
+            int iinc = var > 2 ? 6 : 3;
+
+            int init;
+            int probeCode;
+            int branchCode;
+            int flush = classIdSize + 3;
+            if (localVariables) {
+                init = probes * (1 + var) * (probeTiming ? 2 : 1) + branches * 2 * (1 + var);
+                probeCode = probeSites * (iinc + (probeTiming ? 2 * var : 0));
+                branchCode = branches * 2 * iinc;
+                if (probes > 0) {
+                    flush += 3 + (timing ? 3 : 0) + probes - 1 + probeIndexes + probes * (var + (timing ? var : 0) + 3);
+                }
+                flush += branches > 0 ? 3 + branches * (1 + 3 + 2 * var + 3) : 0;
+            } else {
+                int scratchArray = 3 + 3 + 3 + 3 + 2;
+                init = probes > 0 ? scratchArray * (probeTiming ? 2 : 1) : 0;
+                init += branches > 0 ? 2 * scratchArray : 0;
+                probeCode = probeSites * 7 + siteIndexes + (probeTiming ? probeSites * 5 + siteIndexes : 0);
+                branchCode = branches * 14 + 2 * branchIndexes;
+                if (probes > 0) {
+                    flush += 3 + (timing ? 3 : 0) + 2 + (timing ? 2 : 0) + 3 + 3;
+                }
+                flush += branches > 0 ? 3 + 4 + 3 + 3 : 0;
+            }
+
+            int numReturns = scan.getNumReturns();
+            int numInvokes = scan.getNumInvokes();
+            int timeUpdates = probeTiming ? (3 + var) * (1 + numInvokes + numReturns) : 0;
+            if (timing && !probeTiming) {
+                flush += 3 + var;
+            }
 
+            int numFlushes = (methodCanThrow && (exceptionExitFlush || profile) ? 1 : 0) + numReturns + methodLoopHeaders.size();
+            int exits = 1;
+            if ((strategy.sharedExit || sharedExitFlush) && numReturns > 0) {
+                numFlushes += 1 - numReturns;
+                exits += numReturns * (3 + var) + 2 * (var + 1);
+            }
+            if (getSampleRate() > 1) {
+                init += 8;
+                flush += 5;
+            }
+            if (profile) {
+                init += 20;
+                flush += 12;
+            }
+            return size + init + probeCode + branchCode + timeUpdates + numFlushes * flush + exits;
+        }
 
-        private int countExitPoints(InsnList instructions) {
-            int numberOfReturns = 0;
-            for (int i = 0; i < instructions.size(); i++) {
-                AbstractInsnNode ins = instructions.get(i);
-                if (ins instanceof InsnNode) {
-                    InsnNode node = (InsnNode) ins;
-                    if((node.getOpcode() >= IRETURN && node.getOpcode() <= RETURN ) || node.getOpcode() == ATHROW) {
-                        numberOfReturns ++;
+        /**
+         * Finds the targets of backward jumps, keeping those entered with an empty operand stack
+         */
+        private Set<Label> analyzeLoopHeaders() {
+            Set<LabelNode> targets = new LinkedHashSet<LabelNode>();
+            for (AbstractInsnNode ins = tree.instructions.getFirst(); ins != null; ins = ins.getNext()) {
+                if (ins instanceof JumpInsnNode && ins.getOpcode() != JSR) {
+                    LabelNode target = ((JumpInsnNode) ins).label;
+                    if (tree.instructions.indexOf(target) < tree.instructions.indexOf(ins)) {
+                        targets.add(target);
                     }
                 }
             }
-            return numberOfReturns;
+            if (targets.isEmpty()) {
+                return Collections.emptySet();
+            }
+            Frame[] frames;
+            try {
+                frames = new Analyzer(new BasicInterpreter()).analyze(className, tree);
+            } catch (AnalyzerException e) {
+                return Collections.emptySet();
+            }
+            Set<Label> headers = new HashSet<Label>();
+            for (LabelNode target : targets) {
+                Frame frame = frames[tree.instructions.indexOf(target)];
+                if (frame != null && frame.getStackSize() == 0) {
+                    headers.add(target.getLabel());
+                }
+            }
+            return headers;
+        }
+
+        private int[] toClassLineIndexes(Map<Integer, Integer> methodLineNumbers) {
+            int[] lines = new int[methodLineNumbers.size()];
+            int l = 0;
+            for (Integer lineNumber : methodLineNumbers.keySet()) {
+                lines[l++] = classLineNumbers.get(lineNumber);
+            }
+            return lines;
+        }
+
+        /**
+         * Probes can only be removed from hit-only methods not counting branches. The static initializer keeps its probes.
+         */
+        private boolean isRemovable() {
+            return hitOnly && !trackBranches && !"<clinit>".equals(name);
+        }
 
+        private boolean isCovered(Set<Integer> lineNumbers) {
+            if (!isRemovable() || coveredLines == null || lineNumbers.isEmpty()) {
+                return false;
+            }
+            for (Integer lineNumber : lineNumbers) {
+                if (!coveredLines.get(lineNumber)) {
+                    return false;
+                }
+            }
+            return true;
         }
 
-        private Map<Integer, Integer> analyzeBranchPoints(InsnList instructions) {
-            int currentLineNumber = 0;
+        private Map<Integer, Integer> analyzeBranchPoints() {
             final Map<Integer, Integer> branchPoints = new TreeMap<Integer, Integer>();
-            for (int i = 0; i < instructions.size(); i++) {
-                AbstractInsnNode ins = instructions.get(i);
-                if (ins instanceof LineNumberNode) {
-                    LineNumberNode node = (LineNumberNode) ins;
-                    currentLineNumber = node.line;
+            for (BranchPoint branchPoint : scan.getBranchPoints()) {
+                branchPoints.put(branchPoints.size(), CoverageClassVisitor.this.branchPoints.size());
+                CoverageClassVisitor.this.branchPoints.add(branchPoint);
+            }
+            return branchPoints;
+        }
+
+        /**
+         * Adds the blocks of the method to the class blocks
+         *
+         * @return class block index of the first block in the method
+         */
+        private int addBlocks(ControlFlowGraph graph) {
+            int firstBlock = blockLines.size();
+            for (List<Integer> lineNumbers : graph.blockLineNumbers) {
+                int[] lines = new int[lineNumbers.size()];
+                for (int l = 0; l < lines.length; l++) {
+                    lines[l] = classLineNumbers.get(lineNumbers.get(l));
                 }
+                blockLines.add(lines);
+            }
+            return firstBlock;
+        }
 
-                if (ins instanceof JumpInsnNode) {
-                    JumpInsnNode node = (JumpInsnNode) ins;
+        private Map<Label, Integer> placeBlockProbes(ControlFlowGraph graph, int firstBlock) {
+            final Map<Label, Integer> probes = new HashMap<Label, Integer>();
+            for (int b = 0; b < graph.getNumBlocks(); b++) {
+                probes.put(graph.blockProbes.get(b).getLabel(), firstBlock + b);
+            }
+            return probes;
+        }
 
+        /**
+         * Counts each block directly with an edge counter, for methods where flow is not conserved
+         * or where the exceptional edges leave more edges to count than there are blocks
+         */
+        private Map<Label, Integer> placeBlockCounters(ControlFlowGraph graph, int firstBlock) {
+            final Map<Label, Integer> probes = new HashMap<Label, Integer>();
+            int[] counters = new int[graph.getNumBlocks()];
+            for (int b = 0; b < counters.length; b++) {
+                counters[b] = numEdgeCounters++;
+                probes.put(graph.blockProbes.get(b).getLabel(), counters[b]);
+            }
+            flowGraphs.add(new FlowGraph(firstBlock, counters));
+            return probes;
+        }
 
-                    if (node.getOpcode() != Opcodes.GOTO && node.getOpcode() != Opcodes.JSR) {
-                        int globalIndex = CoverageClassVisitor.this.branchPoints.size();
+        /**
+         * Places a probe on each edge outside the spanning tree of the control flow graph.
+         * Taken conditional jumps and switch cases are counted in a trampoline at the end of the method,
+         * and the virtual edge from the exit is counted on entry to the method.
+         */
+        private Map<Label, Integer> placeEdgeProbes(ControlFlowGraph graph, int firstBlock, Map<Integer, Integer> branchPoints) {
+            final Map<Label, Integer> probes = new HashMap<Label, Integer>();
+            final List<ControlFlowGraph.Edge> edges = graph.edges;
+            final List<ControlFlowGraph.Edge> counted = graph.getCountedEdges();
+
+            int[] edgeSources = new int[edges.size()];
+            int[] edgeTargets = new int[edges.size()];
+            int[] edgeCounters = new int[edges.size()];
+            for (int e = 0; e < edges.size(); e++) {
+                ControlFlowGraph.Edge edge = edges.get(e);
+                edgeSources[e] = edge.source;
+                edgeTargets[e] = edge.target;
+                edgeCounters[e] = -1;
+                if (counted.contains(edge)) {
+                    edgeCounters[e] = numEdgeCounters++;
+                    probes.put(insertEdgeProbe(graph, edge).getLabel(), edgeCounters[e]);
+                }
+            }
+
+            List<Integer> branchBlocks = new ArrayList<Integer>();
+            List<Integer> branchEdges = new ArrayList<Integer>();
+            for (int e = 0; e < edges.size(); e++) {
+                ControlFlowGraph.Edge edge = edges.get(e);
+                AbstractInsnNode end = edge.source < graph.getNumBlocks() ? graph.blockEnds.get(edge.source) : null;
+                if (edge.jump == null && !edge.exceptional && end instanceof JumpInsnNode && end.getOpcode() != GOTO && end.getOpcode() != JSR) {
+                    branchBlocks.add(edge.source);
+                    branchEdges.add(e);
+                }
+            }
+            int[] branchIndexes = new int[branchBlocks.size()];
+            for (int i = 0; i < branchIndexes.length; i++) {
+                branchIndexes[i] = branchPoints.get(i);
+            }
 
-                        CoverageClassVisitor.this.branchPoints.add(new BranchPoint(node.getOpcode(), currentLineNumber - 1));
+            flowGraphs.add(new FlowGraph(firstBlock, graph.getNumBlocks(), edgeSources, edgeTargets, edgeCounters, branchIndexes, toArray(branchBlocks), toArray(branchEdges)));
+            return probes;
+        }
 
-                        branchPoints.put(branchPoints.size(), globalIndex);
-                    }
+        private LabelNode insertEdgeProbe(ControlFlowGraph graph, ControlFlowGraph.Edge edge) {
+            LabelNode probe = new LabelNode();
+            if (edge.source == graph.getExit()) {
+                // In front of any jump target, so jumps back to the first block are not counted as invocations
+                tree.instructions.insert(probe);
+            } else if (edge.needsTrampoline()) {
+                if (edge.jump instanceof JumpInsnNode) {
+                    ((JumpInsnNode) edge.jump).label = probe;
+                } else if (edge.jump instanceof TableSwitchInsnNode) {
+                    TableSwitchInsnNode node = (TableSwitchInsnNode) edge.jump;
+                    node.dflt = redirect(graph, node.dflt, edge.target, probe);
+                    redirect(graph, ControlFlowGraph.<LabelNode>typed(node.labels), edge.target, probe);
+                } else {
+                    LookupSwitchInsnNode node = (LookupSwitchInsnNode) edge.jump;
+                    node.dflt = redirect(graph, node.dflt, edge.target, probe);
+                    redirect(graph, ControlFlowGraph.<LabelNode>typed(node.labels), edge.target, probe);
                 }
+                tree.instructions.add(probe);
+                FrameNode frame = getFrame(edge.targetLabel);
+                if (frame != null) {
+                    tree.instructions.add(frame);
+                }
+                tree.instructions.add(new JumpInsnNode(GOTO, edge.targetLabel));
+            } else if (edge.jump != null || edge.target == graph.getExit()) {
+                tree.instructions.insertBefore(graph.blockEnds.get(edge.source), probe);
+            } else if (graph.blockEnds.get(edge.source) != null) {
+                tree.instructions.insert(graph.blockEnds.get(edge.source), probe);
+            } else {
+                tree.instructions.insert(graph.blockProbes.get(edge.source), probe);
             }
-            return branchPoints;
+            return probe;
         }
 
-        private Map<Integer, Integer> analyzeLinePoints(InsnList instructions) {
-            final Map<Integer, Integer> methodLineNumbers = new TreeMap<Integer, Integer>();
+        /**
+         * @return a copy of the frame at the label, which also holds for a trampoline jumping to it, or null if none
+         */
+        private FrameNode getFrame(LabelNode label) {
+            for (AbstractInsnNode ins = label; ins != null && ins.getOpcode() < 0; ins = ins.getNext()) {
+                if (ins instanceof FrameNode) {
+                    FrameNode frame = (FrameNode) ins;
+                    return new FrameNode(frame.type, frame.local.size(), frame.local.toArray(), frame.stack.size(), frame.stack.toArray());
+                }
+            }
+            return null;
+        }
 
-            for (int i = 0; i < instructions.size(); i++) {
-                AbstractInsnNode ins = instructions.get(i);
-                if (ins instanceof LineNumberNode) {
-                    LineNumberNode node = (LineNumberNode) ins;
-                    int lineNumber = node.line;
-                    existingLines.set(lineNumber);
-                    if (!classLineNumbers.containsKey(lineNumber)) {
-                        classLineNumbers.put(lineNumber, classLineNumbers.size());
-                    }
-                    if (!methodLineNumbers.containsKey(lineNumber)) {
-                        methodLineNumbers.put(lineNumber, methodLineNumbers.size());
-                    }
+        private LabelNode redirect(ControlFlowGraph graph, LabelNode label, int target, LabelNode probe) {
+            return graph.getBlock(label) == target ? probe : label;
+        }
+
+        private void redirect(ControlFlowGraph graph, List<LabelNode> labels, int target, LabelNode probe) {
+            for (int i = 0; i < labels.size(); i++) {
+                labels.set(i, redirect(graph, labels.get(i), target, probe));
+            }
+        }
 
+        private int[] toArray(List<Integer> list) {
+            int[] array = new int[list.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = list.get(i);
+            }
+            return array;
+        }
+
+        private Map<Integer, Integer> analyzeLinePoints() {
+            final Map<Integer, Integer> methodLineNumbers = new TreeMap<Integer, Integer>();
+
+            for (int lineNumber : scan.getLineNumbers()) {
+                existingLines.set(lineNumber);
+                if (!classLineNumbers.containsKey(lineNumber)) {
+                    classLineNumbers.put(lineNumber, classLineNumbers.size());
+                }
+                if (!methodLineNumbers.containsKey(lineNumber)) {
+                    methodLineNumbers.put(lineNumber, methodLineNumbers.size());
                 }
             }
             return methodLineNumbers;
@@ -230,12 +921,90 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
 
     }
 
+    /**
+     * Stamps the method with the current time when it is entered. The first invocation also marks the class as
+     * touched, so the change detector only looks at classes with newly invoked methods.
+     */
+    class MethodEntryInstrumentation extends MethodVisitor {
+
+        /** Frames after this adapter, or null to insert no frames **/
+        private final InstrumentationFrames frames;
+        private final int methodIndex;
+        private final String name;
+        private final int access;
+        private boolean implicitFrameSkipped;
+
+        MethodEntryInstrumentation(MethodVisitor mv, InstrumentationFrames frames, int methodIndex, String name, int access) {
+            super(ASM4, mv);
+            this.frames = frames;
+            this.methodIndex = methodIndex;
+            this.name = name;
+            this.access = access;
+        }
+
+        @Override
+        public void visitCode() {
+            if(frames != null) {
+                // The writer takes the first frame for the implicit one at the start, see visitFrame
+                Object[][] frame = frames.getFrame();
+                mv.visitFrame(F_NEW, frame[0].length, frame[0], 0, frame[1]);
+            }
+            super.visitCode();
+            if(name.equals("<clinit>") && (access & ACC_STATIC) != 0) {
+                staticInjected = true;
+                visitFetchRevocCounter(mv);
+            }
+            // The previous time stays on the stack, the class is touched after the store when it was 0
+            mv.visitFieldInsn(GETSTATIC, className, "revoc_methods", "[J");
+            mv.visitLdcInsn(methodIndex);
+            mv.visitInsn(LALOAD);
+            mv.visitFieldInsn(GETSTATIC, className, "revoc_methods", "[J");
+            mv.visitLdcInsn(methodIndex);
+            mv.visitFieldInsn(GETSTATIC, "no/kantega/labs/revoc/registry/Registry", "time", "J");
+            mv.visitInsn(LASTORE);
+            mv.visitInsn(LCONST_0);
+            mv.visitInsn(LCMP);
+            Label invoked = new Label();
+            mv.visitJumpInsn(IFNE, invoked);
+            Object[][] frame = frames != null ? frames.getFrame() : null;
+            visitClassId(mv);
+            mv.visitMethodInsn(INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", "linesTouched", "(I)V");
+            mv.visitLabel(invoked);
+            if(frame != null) {
+                mv.visitFrame(F_NEW, frame[0].length, frame[0], frame[1].length, frame[1]);
+            }
+        }
+
+        /**
+         * The reader visits the implicit frame of a method with frames before its first instruction, which is after
+         * the inserted code. That frame was visited at the start of the method, and the inserted code ends with it.
+         */
+        @Override
+        public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+            if(frames != null && !implicitFrameSkipped) {
+                implicitFrameSkipped = true;
+                return;
+            }
+            super.visitFrame(type, nLocal, local, nStack, stack);
+        }
+    }
+
     class SecondPassInstrumentation extends AdviceAdapter {
 
 
         private final int classId;
         private final Map<Integer, Integer> classLineNumbers;
         private final Map<Integer, Integer> methodLineNumbers;
+        private final Map<Label, Integer> labelProbes;
+        private final boolean countBranches;
+        private final boolean trackTime;
+        private final boolean timeAtExit;
+        private final boolean countLines;
+        private final boolean sampling;
+        private int sampledLocalVariable;
+        private final boolean loopFlush;
+        private int loopCountdownLocalVariable;
+        private int lastFlushLocalVariable;
         private final Map<Integer, Integer> branchPoints;
         private final int access;
         private final String name;
@@ -251,31 +1020,83 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
         private int waitTimeLocalVariable;
         private int totalWaitTimeLocalVariable;
         private boolean profile;
-
-        protected SecondPassInstrumentation(int classId, Map<Integer, Integer> classLineNumbers, Map<Integer, Integer> methodLineNumbers, Map<Integer, Integer> branchPoints, int reportLoad, MethodVisitor methodVisitor, int access, String name, String desc) {
+        private final boolean sharedExit;
+        private final boolean catchAll;
+        private Label exit;
+        private int exitOpcode;
+        private int returnValueLocalVariable;
+
+        /** Frames after this adapter, or null to insert no frames **/
+        private final InstrumentationFrames frames;
+        /** Frames at the inserted labels jumped to so far **/
+        private final Map<Label, Object[][]> labelFrames = new HashMap<Label, Object[][]>();
+
+        /** Probe code of the last label or line number, placed after the frame at that offset, if any **/
+        private boolean pendingLoopFlush;
+        private final List<Integer> pendingProbes = new ArrayList<Integer>();
+        private final List<Integer> pendingHits = new ArrayList<Integer>();
+        private boolean implicitFrameSkipped;
+        /** Index of the method in the class, as the profiler knows it **/
+        private final int methodIndex;
+
+        protected SecondPassInstrumentation(int classId, Map<Integer, Integer> classLineNumbers, Map<Integer, Integer> methodLineNumbers, Map<Label, Integer> labelProbes, Map<Integer, Integer> branchPoints, int reportLoad, MethodVisitor methodVisitor, InstrumentationFrames frames, int access, String name, String desc) {
             super(ASM4, methodVisitor, access, name, desc);
+            this.frames = frames;
             this.classId = classId;
             this.classLineNumbers = classLineNumbers;
             this.methodLineNumbers = methodLineNumbers;
+            this.labelProbes = labelProbes;
+            this.countBranches = trackBranches && !methodBranchesDerived && methodStrategy.countBranches;
+            this.trackTime = CoverageClassVisitor.this.trackTime && !hitOnly && methodStrategy.trackTime;
+            this.timeAtExit = CoverageClassVisitor.this.timeAtExit;
+            this.countLines = trackLines && !hitOnly;
+            this.sampling = getSampleRate() > 1 && (countLines || countBranches);
             this.branchPoints = branchPoints;
+            if (labelProbes != null) {
+                for (Integer probe : labelProbes.values()) {
+                    probeIndexes.put(probe, probe);
+                }
+                for (Integer probe : probeIndexes.keySet()) {
+                    probeArrayIndexes.put(probe, probeArrayIndexes.size());
+                }
+            } else {
+                for (Integer lineNumber : methodLineNumbers.keySet()) {
+                    probeIndexes.put(lineNumber, classLineNumbers.get(lineNumber));
+                }
+                probeArrayIndexes.putAll(methodLineNumbers);
+            }
             this.access = access;
             this.name = name;
-            this.useLocalVariables = reportLoad <= maxLocalVariableReportLoad;
+            this.methodIndex = methodNames.size();
+            this.useLocalVariables = reportLoad <= maxLocalVariableReportLoad && methodStrategy.localVariables;
             this.profile = CoverageClassVisitor.this.profile && !"<clinit>".equals(name);
+            this.sharedExit = (sharedExitFlush || methodStrategy.sharedExit) && needsExitRegistration();
+            this.catchAll = methodCanThrow && (exceptionExitFlush || this.profile) && needsExitRegistration();
+            this.loopFlush = !methodLoopHeaders.isEmpty() && (countLines || countBranches);
         }
 
-        // Maps absolute line number to local variable index
-        private Map<Integer, Integer> lineNumberLocalVariables = new TreeMap<Integer, Integer>();
-        private Map<Integer, Integer> lineTimeLocalVariables = new TreeMap<Integer, Integer>();
+        // Maps probe (absolute line number or index of a label probe) to its index in the class probe counters
+        private Map<Integer, Integer> probeIndexes = new TreeMap<Integer, Integer>();
+        // Maps probe to its index in the method's array local variables
+        private Map<Integer, Integer> probeArrayIndexes = new TreeMap<Integer, Integer>();
+        // Maps probe to local variable index
+        private Map<Integer, Integer> probeLocalVariables = new TreeMap<Integer, Integer>();
+        private Map<Integer, Integer> probeTimeLocalVariables = new TreeMap<Integer, Integer>();
         private Map<Integer, Integer> beforeBranchPointLocalVariables = new TreeMap<Integer, Integer>();
         private Map<Integer, Integer> afterBranchPointLocalVariables = new TreeMap<Integer, Integer>();
         public Label before;
         public Label handler;
+        private boolean beforeVisited;
 
 
 
         @Override
         public void visitCode() {
+            if(frames != null) {
+                // The writer takes the first frame for the implicit one at the start, see visitFrame
+                Object[][] frame = frames.getFrame();
+                mv.visitFrame(F_NEW, frame[0].length, frame[0], 0, frame[1]);
+            }
             super.visitCode();
 
             if(name.equals("<clinit>") && (access & ACC_STATIC) != 0) {
@@ -285,9 +1106,20 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
 
             if(trackTime) {
                 timeLocal = newLocal(Type.LONG_TYPE);
-                updateTime();
+                if(!timeAtExit) {
+                    updateTime();
+                } else if(frames != null) {
+                    // Frames hold the time local from here on
+                    mv.visitInsn(LCONST_0);
+                    mv.visitVarInsn(LSTORE, timeLocal);
+                }
+            }
+            if(sampling) {
+                visitIntConstantInstruction(sampleRate);
+                mv.visitMethodInsn(INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", "isSampled", "(I)Z");
+                mv.visitVarInsn(ISTORE, sampledLocalVariable = newLocal(Type.BOOLEAN_TYPE));
             }
-            if(trackLines) {
+            if(countLines) {
                 if(useLocalVariables) {
                     initializeLineNumberLocalVariables();
                 } else {
@@ -295,7 +1127,7 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
                 }
             }
 
-            if(trackBranches) {
+            if(countBranches) {
                 if(useLocalVariables) {
                     initializeBranchPointLocalVariables();
                 } else {
@@ -303,16 +1135,93 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
                 }
             }
 
+            if(loopFlush) {
+                visitIntConstantInstruction(loopFlushInterval);
+                mv.visitVarInsn(ISTORE, loopCountdownLocalVariable = newLocal(Type.INT_TYPE));
+                mv.visitInsn(LCONST_0);
+                mv.visitVarInsn(LSTORE, lastFlushLocalVariable = newLocal(Type.LONG_TYPE));
+            }
+
             if(profile) {
-                mv.visitLdcInsn((long)classId << 32 | (long) methodNames.size());
+                visitClassId(mv);
+                mv.visitInsn(I2L);
+                mv.visitIntInsn(BIPUSH, 32);
+                mv.visitInsn(LSHL);
+                mv.visitLdcInsn((long) methodIndex);
+                mv.visitInsn(LOR);
                 mv.visitMethodInsn(INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", "registerMethodEnter", "(J)Lno/kantega/labs/revoc/registry/Registry$FrameMap;");
                 mv.visitVarInsn(ASTORE, frameMapLocalVariable = newLocal(Type.getType(Registry.FrameMap.class)));
                 initalizeProfilingLocalVariables();
                                 
             }
-            before = new Label();
-            handler = new Label();
-            mv.visitLabel(before);
+            if(sharedExit) {
+                initializeReturnValueLocalVariable();
+            }
+            if(catchAll) {
+                before = new Label();
+                handler = new Label();
+                if(!"<init>".equals(name)) {
+                    mv.visitLabel(before);
+                    beforeVisited = true;
+                }
+            }
+        }
+
+        /**
+         * Constructors are covered by the catch-all handler once the super constructor has returned, a handler
+         * frame cannot hold an uninitialized this.
+         */
+        @Override
+        protected void onMethodEnter() {
+            if(catchAll && "<init>".equals(name)) {
+                mv.visitLabel(before);
+                beforeVisited = true;
+            }
+        }
+
+        /**
+         * The local holding the return value on its way to the shared exit is assigned up front, so the frame at
+         * the exit holds whatever return leads to it.
+         */
+        private void initializeReturnValueLocalVariable() {
+            Type returnType = Type.getReturnType(methodDesc);
+            switch (returnType.getSort()) {
+                case Type.VOID:
+                    return;
+                case Type.FLOAT:
+                    mv.visitInsn(FCONST_0);
+                    break;
+                case Type.LONG:
+                    mv.visitInsn(LCONST_0);
+                    break;
+                case Type.DOUBLE:
+                    mv.visitInsn(DCONST_0);
+                    break;
+                case Type.ARRAY:
+                case Type.OBJECT:
+                    mv.visitInsn(ACONST_NULL);
+                    break;
+                default:
+                    mv.visitInsn(ICONST_0);
+            }
+            mv.visitVarInsn(returnType.getOpcode(ISTORE), returnValueLocalVariable = newLocal(returnType));
+        }
+
+        @Override
+        public int newLocal(Type type) {
+            int local = super.newLocal(type);
+            if(frames != null) {
+                frames.addLocal(local, type);
+            }
+            return local;
+        }
+
+        /**
+         * Hit-only line probes have nothing to register when the method exits, so such methods need neither
+         * exit code nor the catch-all handler unless branches are counted or the method is profiled.
+         */
+        private boolean needsExitRegistration() {
+            return countLines || countBranches || profile;
         }
 
         private void initalizeProfilingLocalVariables() {
@@ -327,27 +1236,42 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
         }
 
         private void initializeBranchPointArrayLocalVariable() {
-            visitIntConstantInstruction(branchPoints.size());
-            mv.visitIntInsn(NEWARRAY, T_INT);
+            visitScratchArray("scratchInts", "(II)[I", branchPoints.size());
             mv.visitVarInsn(ASTORE, beforeBranchPointsLocalVariable = newLocal(Type.getType("[I")));
-            visitIntConstantInstruction(branchPoints.size());
-            mv.visitIntInsn(NEWARRAY, T_INT);
+            visitScratchArray("scratchInts", "(II)[I", branchPoints.size());
             mv.visitVarInsn(ASTORE, afterBranchPointsLocalVariable = newLocal(Type.getType("[I")));
         }
 
         private void initializeLineNumerArrayLocalVariable() {
-            visitIntConstantInstruction(methodLineNumbers.size());
-            mv.visitIntInsn(NEWARRAY, T_INT);
+            visitScratchArray("scratchInts", "(II)[I", probeIndexes.size());
             mv.visitVarInsn(ASTORE, lineVisitsLocalVariable = newLocal(Type.getType("[I")));
-            if(trackTime) {
-                visitIntConstantInstruction(methodLineNumbers.size());
-                mv.visitIntInsn(NEWARRAY, T_LONG);
+            if(trackProbeTimes()) {
+                visitScratchArray("scratchLongs", "(II)[J", probeIndexes.size());
                 mv.visitVarInsn(ASTORE, timeVisitsLocalVariable = newLocal(Type.getType("[J")));
             }
 
 
         }
 
+        /**
+         * Fetches a per thread scratch array instead of allocating one on each invocation. Unsampled invocations
+         * get slot 0, which is never registered.
+         */
+        private void visitScratchArray(String method, String desc, int size) {
+            mv.visitFieldInsn(GETSTATIC, className, FIRST_SCRATCH_SLOT_FIELD, "I");
+            int slot = numScratchSlots++;
+            if(slot > 0) {
+                visitIntConstantInstruction(slot);
+                mv.visitInsn(IADD);
+            }
+            if(sampling) {
+                mv.visitVarInsn(ILOAD, sampledLocalVariable);
+                mv.visitInsn(IMUL);
+            }
+            visitIntConstantInstruction(size);
+            mv.visitMethodInsn(INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", method, desc);
+        }
+
         private void initializeBranchPointLocalVariables() {
             for (int branchIndex : branchPoints.keySet()) {
                 {
@@ -366,17 +1290,17 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
         }
 
         private void initializeLineNumberLocalVariables() {
-            for (int lineNumber : methodLineNumbers.keySet()) {
+            for (int probe : probeIndexes.keySet()) {
                 {
                     mv.visitInsn(ICONST_0);
                     int local = newLocal(Type.INT_TYPE);
-                    lineNumberLocalVariables.put(lineNumber, local);
+                    probeLocalVariables.put(probe, local);
                     mv.visitVarInsn(ISTORE, local);
                 }
-                if(trackTime) {
+                if(trackProbeTimes()) {
                     mv.visitInsn(LCONST_0);
                     int local = newLocal(Type.LONG_TYPE);
-                    lineTimeLocalVariables.put(lineNumber, local);
+                    probeTimeLocalVariables.put(probe, local);
                     mv.visitVarInsn(LSTORE, local);
                 }
             }
@@ -386,39 +1310,233 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
         @Override
         public void visitLineNumber(int lineNumber, Label label) {
             mv.visitLineNumber(lineNumber, label);
-            if(trackLines) {
-                if(useLocalVariables) {
-                    mv.visitIincInsn(lineNumberLocalVariables.get(lineNumber), 1);
+            if(trackLines && hitOnly) {
+                pendingHits.add(lineNumber);
+            } else if(trackLines && labelProbes == null) {
+                pendingProbes.add(lineNumber);
+            }
+        }
 
-                    if(trackTime) {
-                        mv.visitVarInsn(LLOAD, timeLocal);
-                        mv.visitVarInsn(LSTORE, lineTimeLocalVariables.get(lineNumber));
-                    }
-                } else {
-                    {
-                    mv.visitVarInsn(ALOAD, lineVisitsLocalVariable);
-                    visitIntConstantInstruction(methodLineNumbers.get(lineNumber));
-                    mv.visitInsn(DUP2);
-                    mv.visitInsn(IALOAD);
-                    mv.visitInsn(ICONST_1);
-                    mv.visitInsn(IADD);
-                    mv.visitInsn(IASTORE);
-                    }
-                    if(trackTime) {
-                        mv.visitVarInsn(ALOAD, timeVisitsLocalVariable);
-                        visitIntConstantInstruction(methodLineNumbers.get(lineNumber));
-                        mv.visitVarInsn(LLOAD, timeLocal);
-                        mv.visitInsn(LASTORE);
-                    }
+        @Override
+        public void visitLabel(Label label) {
+            visitPendingProbes();
+            super.visitLabel(label);
+            if(loopFlush && methodLoopHeaders.contains(label)) {
+                pendingLoopFlush = true;
+            }
+            if(trackLines && labelProbes != null) {
+                Integer probe = labelProbes.get(label);
+                if(probe != null) {
+                    pendingProbes.add(probe);
                 }
+            }
+        }
 
+        /**
+         * The reader visits the implicit frame of a method with frames before its first instruction, which is after
+         * the inserted code. That frame was visited at the start of the method instead.
+         */
+        @Override
+        public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+            if(frames != null && !implicitFrameSkipped) {
+                implicitFrameSkipped = true;
+                return;
+            }
+            super.visitFrame(type, nLocal, local, nStack, stack);
+            visitPendingProbes();
+        }
 
+        /**
+         * Inserts the probe code of the last label or line number. It waits for the frame at that offset, if any,
+         * as a frame must come before the first instruction at its offset.
+         */
+        private void visitPendingProbes() {
+            if(pendingLoopFlush) {
+                pendingLoopFlush = false;
+                visitLoopFlush();
             }
+            for (int probe : pendingProbes) {
+                visitProbe(probe);
+            }
+            pendingProbes.clear();
+            for (int lineNumber : pendingHits) {
+                // Lines already hit are only read, the first hit of a line marks the class as touched
+                Label hit = new Label();
+                mv.visitFieldInsn(GETSTATIC, className, "revoc_hits", "[Z");
+                visitIntConstantInstruction(classLineNumbers.get(lineNumber));
+                mv.visitInsn(BALOAD);
+                visitInsertedJump(IFNE, hit);
+                mv.visitFieldInsn(GETSTATIC, className, "revoc_hits", "[Z");
+                visitIntConstantInstruction(classLineNumbers.get(lineNumber));
+                mv.visitInsn(ICONST_1);
+                mv.visitInsn(BASTORE);
+                visitClassId(mv);
+                mv.visitMethodInsn(INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", "linesTouched", "(I)V");
+                visitInsertedLabel(hit);
+            }
+            pendingHits.clear();
+        }
 
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            visitPendingProbes();
+            super.visitIntInsn(opcode, operand);
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            visitPendingProbes();
+            super.visitVarInsn(opcode, var);
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            visitPendingProbes();
+            super.visitTypeInsn(opcode, type);
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+            visitPendingProbes();
+            super.visitFieldInsn(opcode, owner, name, desc);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+            visitPendingProbes();
+            super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+        }
+
+        @Override
+        public void visitLdcInsn(Object cst) {
+            visitPendingProbes();
+            super.visitLdcInsn(cst);
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            visitPendingProbes();
+            super.visitIincInsn(var, increment);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            visitPendingProbes();
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            visitPendingProbes();
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String desc, int dims) {
+            visitPendingProbes();
+            super.visitMultiANewArrayInsn(desc, dims);
+        }
+
+        /**
+         * Inserts a conditional jump to a label of the instrumentation, keeping the frame after the jump for the label.
+         * Jumps to the same label only differ in locals of the instrumentation, which keep their type.
+         */
+        private void visitInsertedJump(int opcode, Label label) {
+            mv.visitJumpInsn(opcode, label);
+            if(frames != null && !labelFrames.containsKey(label)) {
+                labelFrames.put(label, frames.getFrame());
+            }
+        }
+
+        /**
+         * Inserts a label of the instrumentation, with the frame kept when jumping to it
+         */
+        private void visitInsertedLabel(Label label) {
+            mv.visitLabel(label);
+            Object[][] frame = labelFrames.remove(label);
+            if(frame != null) {
+                mv.visitFrame(F_NEW, frame[0].length, frame[0], frame[1].length, frame[1]);
+            }
+        }
+
+        /**
+         * Inserts a label of the instrumentation where only its own locals are used, such as the catch-all handler
+         * and the shared exit. The other locals may hold anything there.
+         */
+        private void visitExitLabel(Label label, Object... stack) {
+            mv.visitLabel(label);
+            if(frames != null) {
+                mv.visitFrame(F_NEW, 0, new Object[0], stack.length, stack);
+            }
+        }
+
+        /**
+         * Counts down the loop iterations, and when the countdown runs out registers the visits counted so far
+         * if the registry time has moved since the last registration. Counting continues from zero.
+         */
+        private void visitLoopFlush() {
+            Label skip = new Label();
+            mv.visitIincInsn(loopCountdownLocalVariable, -1);
+            mv.visitVarInsn(ILOAD, loopCountdownLocalVariable);
+            visitInsertedJump(IFGT, skip);
+            visitIntConstantInstruction(loopFlushInterval);
+            mv.visitVarInsn(ISTORE, loopCountdownLocalVariable);
+            mv.visitFieldInsn(GETSTATIC, "no/kantega/labs/revoc/registry/Registry", "time", "J");
+            mv.visitVarInsn(LLOAD, lastFlushLocalVariable);
+            mv.visitInsn(LCMP);
+            visitInsertedJump(IFEQ, skip);
+            mv.visitFieldInsn(GETSTATIC, "no/kantega/labs/revoc/registry/Registry", "time", "J");
+            mv.visitVarInsn(LSTORE, lastFlushLocalVariable);
+
+            generateVisitRegistration(skip);
+
+            if(useLocalVariables) {
+                for (int local : probeLocalVariables.values()) {
+                    mv.visitInsn(ICONST_0);
+                    mv.visitVarInsn(ISTORE, local);
+                }
+                for (int local : beforeBranchPointLocalVariables.values()) {
+                    mv.visitInsn(ICONST_0);
+                    mv.visitVarInsn(ISTORE, local);
+                }
+                for (int local : afterBranchPointLocalVariables.values()) {
+                    mv.visitInsn(ICONST_0);
+                    mv.visitVarInsn(ISTORE, local);
+                }
+            }
+            visitInsertedLabel(skip);
+        }
+
+        private void visitProbe(int probe) {
+            if(useLocalVariables) {
+                mv.visitIincInsn(probeLocalVariables.get(probe), 1);
+
+                if(trackProbeTimes()) {
+                    mv.visitVarInsn(LLOAD, timeLocal);
+                    mv.visitVarInsn(LSTORE, probeTimeLocalVariables.get(probe));
+                }
+            } else {
+                {
+                mv.visitVarInsn(ALOAD, lineVisitsLocalVariable);
+                visitIntConstantInstruction(probeArrayIndexes.get(probe));
+                mv.visitInsn(DUP2);
+                mv.visitInsn(IALOAD);
+                mv.visitInsn(ICONST_1);
+                mv.visitInsn(IADD);
+                mv.visitInsn(IASTORE);
+                }
+                if(trackProbeTimes()) {
+                    mv.visitVarInsn(ALOAD, timeVisitsLocalVariable);
+                    visitIntConstantInstruction(probeArrayIndexes.get(probe));
+                    mv.visitVarInsn(LLOAD, timeLocal);
+                    mv.visitInsn(LASTORE);
+                }
+            }
         }
 
         @Override
         public void visitMethodInsn(int opcode, String owner, String name, String desc) {
+            visitPendingProbes();
             if(profile && isWaitMethod(opcode, owner, name, desc)) {
                 nanoTime();
                 mv.visitVarInsn(LSTORE, waitTimeLocalVariable);
@@ -434,21 +1552,48 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
                 mv.visitVarInsn(LSTORE, totalWaitTimeLocalVariable);
 
             }
-            if(trackTime) {
+            if(trackProbeTimes()) {
                 updateTime();
             }
         }
 
+        /**
+         * Each probe records the time of its visit, unless the time is read when the visits are registered
+         */
+        private boolean trackProbeTimes() {
+            return trackTime && !timeAtExit;
+        }
+
         private boolean isWaitMethod(int opcode, String owner, String name, String desc) {
             return opcode == INVOKEVIRTUAL && "java/lang/Thread".equals(owner) && "join".equals(name) && "()V".equals(desc);
         }
 
         @Override
         public void visitInsn(int i) {
-            if (trackTime && i >= IRETURN && i <= RETURN) {
+            visitPendingProbes();
+            if (trackProbeTimes() && i >= IRETURN && i <= RETURN) {
                 updateTime();
             }
-            super.visitInsn(i);
+            if (sharedExit && i >= IRETURN && i <= RETURN) {
+                visitExitJump(i);
+            } else {
+                super.visitInsn(i);
+            }
+        }
+
+        /**
+         * Replaces a return with a jump to the shared exit block, keeping the return value in a local
+         */
+        private void visitExitJump(int opcode) {
+            Type returnType = Type.getReturnType(methodDesc);
+            if (exit == null) {
+                exit = new Label();
+                exitOpcode = opcode;
+            }
+            if (opcode != RETURN) {
+                mv.visitVarInsn(returnType.getOpcode(ISTORE), returnValueLocalVariable);
+            }
+            mv.visitJumpInsn(GOTO, exit);
         }
 
         private void updateTime() {
@@ -477,26 +1622,41 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
 
         @Override
         public void visitMaxs(int maxStack, int maxLocals) {
-            mv.visitTryCatchBlock(before, handler, handler, null);
-            mv.visitLabel(handler);
+            // Probes after the last instruction are never reached
+            pendingLoopFlush = false;
+            pendingProbes.clear();
+            pendingHits.clear();
+            if(catchAll && beforeVisited) {
+                mv.visitTryCatchBlock(before, handler, handler, null);
+                visitExitLabel(handler, "java/lang/Throwable");
 
 
-            generateLineVisitRegistration();
+                generateLineVisitRegistration();
 
-            mv.visitInsn(ATHROW);
-            mv.visitMaxs(maxStack, maxLocals + lineNumberLocalVariables.size() + beforeBranchPointLocalVariables.size() + afterBranchPointLocalVariables.size());
+                mv.visitInsn(ATHROW);
+            }
+            if(exit != null) {
+                visitExitLabel(exit);
+                generateLineVisitRegistration();
+                if (exitOpcode != RETURN) {
+                    mv.visitVarInsn(Type.getReturnType(methodDesc).getOpcode(ILOAD), returnValueLocalVariable);
+                }
+                mv.visitInsn(exitOpcode);
+            }
+            mv.visitMaxs(maxStack, maxLocals + probeLocalVariables.size() + beforeBranchPointLocalVariables.size() + afterBranchPointLocalVariables.size());
         }
 
         @Override
         protected void onMethodExit(int opcode) {
-            if (opcode != ATHROW) {
+            if (opcode != ATHROW && needsExitRegistration()) {
                 generateLineVisitRegistration();
             }
         }
 
         @Override
         public void visitJumpInsn(int i, Label label) {
-            if (!trackBranches || i == Opcodes.GOTO || i == Opcodes.JSR ) {
+            visitPendingProbes();
+            if (!countBranches || i == Opcodes.GOTO || i == Opcodes.JSR ) {
                 super.visitJumpInsn(i, label);
             } else {
                 int index = methodJumpIndex;
@@ -546,20 +1706,38 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
                 mv.visitVarInsn(LLOAD, totalWaitTimeLocalVariable);
                 mv.visitMethodInsn(INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", "registerMethodExit", "(Lno/kantega/labs/revoc/registry/Registry$FrameMap;JJ)V");
             }
-            
+
+            generateVisitRegistration(null);
+        }
+
+        /**
+         * Registers the line and branch visits counted in the locals or arrays of the method
+         *
+         * @param done label following the registration to skip to in unsampled invocations, or null to place one
+         */
+        private void generateVisitRegistration(Label done) {
+            Label unsampled = null;
+            if(sampling) {
+                unsampled = done != null ? done : new Label();
+                mv.visitVarInsn(ILOAD, sampledLocalVariable);
+                visitInsertedJump(IFEQ, unsampled);
+            }
+
             // Get the int[] for this class
 
 
-            if(trackLines) {
+            if(countLines) {
+
+                if(trackTime && timeAtExit) {
+                    updateTime();
+                }
 
                 {
 
                     mv.visitFieldInsn(GETSTATIC, className, "revoc_counters", "Ljava/util/concurrent/atomic/AtomicLongArray;");
 
                     if(trackTime) {
-                        mv.visitFieldInsn(GETSTATIC, "no/kantega/labs/revoc/registry/Registry", "lineTimes", "[Ljava/util/concurrent/atomic/AtomicLongArray;");
-                        visitIntConstantInstruction(classId);
-                        mv.visitInsn(AALOAD);
+                        mv.visitFieldInsn(GETSTATIC, className, "revoc_times", "Ljava/util/concurrent/atomic/AtomicLongArray;");
                     }
 
                 }
@@ -568,7 +1746,7 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
 
 
 
-                    for (int i = 0; i < lineNumberLocalVariables.size() - 1; i++) {
+                    for (int i = 0; i < probeLocalVariables.size() - 1; i++) {
                         if(trackTime) {
                             mv.visitInsn(DUP2);
                         } else {
@@ -576,11 +1754,11 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
                         }
                     }
 
-                    for (Integer lineNumber : lineNumberLocalVariables.keySet()) {
-                        visitIntConstantInstruction(classLineNumbers.get(lineNumber));
-                        mv.visitVarInsn(ILOAD, lineNumberLocalVariables.get(lineNumber));
+                    for (Integer probe : probeLocalVariables.keySet()) {
+                        visitIntConstantInstruction(probeIndexes.get(probe));
+                        mv.visitVarInsn(ILOAD, probeLocalVariables.get(probe));
                         if(trackTime) {
-                            mv.visitVarInsn(LLOAD, lineTimeLocalVariables.get(lineNumber));
+                            mv.visitVarInsn(LLOAD, timeAtExit ? timeLocal : probeTimeLocalVariables.get(probe));
                             mv.visitMethodInsn(INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", "registerLineTimeVisited", "(Ljava/util/concurrent/atomic/AtomicLongArray;Ljava/util/concurrent/atomic/AtomicLongArray;IIJ)V");
                         } else {
                             mv.visitMethodInsn(INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", "registerLineVisited", "(Ljava/util/concurrent/atomic/AtomicLongArray;II)V");
@@ -592,12 +1770,16 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
                     }
                 } else {
                     mv.visitVarInsn(ALOAD, lineVisitsLocalVariable);
-                    if(trackTime) {
+                    if(trackTime && timeAtExit) {
+                        mv.visitVarInsn(LLOAD, timeLocal);
+                    } else if(trackTime) {
                         mv.visitVarInsn(ALOAD, timeVisitsLocalVariable);
                     }
-                    visitIntConstantInstruction(classLineNumbers.get(methodLineNumbers.keySet().iterator().next()));
+                    visitIntConstantInstruction(probeIndexes.get(probeIndexes.keySet().iterator().next()));
 
-                    if(trackTime) {
+                    if(trackTime && timeAtExit) {
+                        mv.visitMethodInsn(INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", "registerLineTimeVisitedArray", "(Ljava/util/concurrent/atomic/AtomicLongArray;Ljava/util/concurrent/atomic/AtomicLongArray;[IJI)V");
+                    } else if(trackTime) {
                         mv.visitMethodInsn(INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", "registerLineTimeVisitedArray", "(Ljava/util/concurrent/atomic/AtomicLongArray;Ljava/util/concurrent/atomic/AtomicLongArray;[I[JI)V");
                     } else {
                         mv.visitMethodInsn(INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", "registerLineVisitedArray", "(Ljava/util/concurrent/atomic/AtomicLongArray;[II)V");
@@ -605,32 +1787,66 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
                 }
             }
 
-            if(trackBranches && !branchPoints.isEmpty()) {
+            if(countBranches && !branchPoints.isEmpty()) {
+                mv.visitFieldInsn(GETSTATIC, className, "revoc_branches", "Ljava/util/concurrent/atomic/AtomicLongArray;");
                 if(useLocalVariables) {
+                    for (int i = 0; i < branchPoints.size() - 1; i++) {
+                        mv.visitInsn(DUP);
+                    }
                     for(Integer index :branchPoints.keySet()) {
-
-                        visitIntConstantInstruction(classId);
                         visitIntConstantInstruction(branchPoints.get(index));
                         mv.visitVarInsn(ILOAD, beforeBranchPointLocalVariables.get(index));
                         mv.visitVarInsn(ILOAD, afterBranchPointLocalVariables.get(index));
-                        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", "registerBranchPointVisits", "(IIII)V");
-
+                        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", "registerBranchVisits", "(Ljava/util/concurrent/atomic/AtomicLongArray;III)V");
                     }
                 } else {
-                    visitIntConstantInstruction(classId);
                     mv.visitVarInsn(ALOAD, beforeBranchPointsLocalVariable);
                     mv.visitVarInsn(ALOAD, afterBranchPointsLocalVariable);
                     visitIntConstantInstruction(branchPoints.get(branchPoints.keySet().iterator().next()));
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", "registerBranchPointVisitsArray", "(I[I[II)V");
+                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", "registerBranchVisitsArray", "(Ljava/util/concurrent/atomic/AtomicLongArray;[I[II)V");
                 }
             }
 
-            visitIntConstantInstruction(classId);
+            visitClassId(mv);
             mv.visitMethodInsn(INVOKESTATIC, "no/kantega/labs/revoc/registry/Registry", "linesTouched", "(I)V");
+
+            if(unsampled != null && unsampled != done) {
+                visitInsertedLabel(unsampled);
+            }
         }
 
     }
 
+    /**
+     * Ways of probing a method, from the most to the least code per probe. The last two give up counts to save code.
+     * Methods with a report load above maxLocalVariableReportLoad use arrays whatever the strategy.
+     */
+    private enum MethodStrategy {
+        LOCALS("local variables", true, false, true, true),
+        SHARED_EXIT("local variables and a shared exit", true, true, true, true),
+        ARRAYS("scratch arrays and a shared exit", false, true, true, true),
+        ARRAYS_WITHOUT_TIME("scratch arrays without time tracking", false, true, false, true),
+        ARRAYS_WITHOUT_TIME_AND_BRANCHES("scratch arrays without time or branch tracking", false, true, false, false);
+
+        final String description;
+        final boolean localVariables;
+        final boolean sharedExit;
+        final boolean trackTime;
+        final boolean countBranches;
+
+        MethodStrategy(String description, boolean localVariables, boolean sharedExit, boolean trackTime, boolean countBranches) {
+            this.description = description;
+            this.localVariables = localVariables;
+            this.sharedExit = sharedExit;
+            this.trackTime = trackTime;
+            this.countBranches = countBranches;
+        }
+
+        boolean isLossy() {
+            return !trackTime || !countBranches;
+        }
+    }
+
     public BitSet getExistingLines() {
         return existingLines;
     }
@@ -649,6 +1865,38 @@ public class CoverageClassVisitor extends ClassVisitor implements Opcodes {
         return lines;
     }
 
+    /**
+     * @return the class line indexes executed by each basic block, empty unless probes are placed on blocks or edges
+     */
+    public int[][] getBlockLines() {
+        return blockLines.toArray(new int[blockLines.size()][]);
+    }
+
+    /**
+     * @return how block visits are derived from edge counters, empty unless probes are placed on edges
+     */
+    public List<FlowGraph> getFlowGraphs() {
+        return flowGraphs;
+    }
+
+    public int getNumEdgeCounters() {
+        return numEdgeCounters;
+    }
+
+    /**
+     * @return the class line indexes of each method, in the order of the method names, when recording method coverage
+     */
+    public int[][] getMethodLines() {
+        return methodLines.toArray(new int[methodLines.size()][]);
+    }
+
+    /**
+     * @return the class line indexes of each method with hit-only line probes that could later be removed
+     */
+    public List<int[]> getProbedMethodLines() {
+        return probedMethodLines;
+    }
+
     public List<BranchPoint> getBranchPoints() {
         return branchPoints;
     }
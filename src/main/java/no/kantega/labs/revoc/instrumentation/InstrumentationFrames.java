@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.instrumentation;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AnalyzerAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Keeps the StackMapTable frames of an instrumented method valid, so the class can be written without computing
+ * its frames and without looking up common super classes.
+ *
+ * Placed after the instrumentation, it adds the local variables of the instrumentation to the frames of the
+ * original code, which the local variable sorter leaves out when none of the original locals were moved.
+ * It also tracks the frame of the code passing through it, giving the frames of the branch targets the
+ * instrumentation inserts.
+ */
+class InstrumentationFrames extends MethodVisitor implements Opcodes {
+
+    private final AnalyzerAdapter analyzer;
+
+    /** Types of the local variables added by the instrumentation, by local variable index **/
+    private final SortedMap<Integer, Type> locals = new TreeMap<Integer, Type>();
+
+    InstrumentationFrames(String owner, int access, String name, String desc, MethodVisitor mv) {
+        this(new AnalyzerAdapter(owner, access, name, desc, mv));
+    }
+
+    private InstrumentationFrames(AnalyzerAdapter analyzer) {
+        super(ASM4, analyzer);
+        this.analyzer = analyzer;
+    }
+
+    /**
+     * Adds a local of the instrumentation. It must be assigned before any later frame.
+     */
+    void addLocal(int local, Type type) {
+        locals.put(local, type);
+    }
+
+    /**
+     * @return the frame locals and stack at the current instruction, or null if it cannot be reached
+     */
+    Object[][] getFrame() {
+        if (analyzer.locals == null) {
+            return null;
+        }
+        return new Object[][] {toFrameTypes(analyzer.locals), toFrameTypes(analyzer.stack)};
+    }
+
+    @Override
+    public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+        List<Object> slots = new ArrayList<Object>();
+        for (int i = 0; i < nLocal; i++) {
+            slots.add(local[i]);
+            if (LONG.equals(local[i]) || DOUBLE.equals(local[i])) {
+                slots.add(TOP);
+            }
+        }
+        for (Map.Entry<Integer, Type> entry : locals.entrySet()) {
+            int slot = entry.getKey();
+            Type localType = entry.getValue();
+            while (slots.size() < slot + localType.getSize()) {
+                slots.add(TOP);
+            }
+            slots.set(slot, toFrameType(localType));
+            if (localType.getSize() == 2) {
+                slots.set(slot + 1, TOP);
+            }
+        }
+        Object[] frameLocals = toFrameTypes(slots);
+        super.visitFrame(type, frameLocals.length, frameLocals, nStack, stack);
+    }
+
+    /**
+     * @return the frame types of the analyzer types, where long and double values take a single entry. Takes any
+     *         list, as the analyzer's are raw in ASM 4.
+     */
+    private static Object[] toFrameTypes(List<?> types) {
+        List<Object> frameTypes = new ArrayList<Object>();
+        for (int i = 0; i < types.size(); i++) {
+            Object type = types.get(i);
+            frameTypes.add(type);
+            if (LONG.equals(type) || DOUBLE.equals(type)) {
+                i++;
+            }
+        }
+        return frameTypes.toArray();
+    }
+
+    private static Object toFrameType(Type type) {
+        switch (type.getSort()) {
+            case Type.FLOAT:
+                return FLOAT;
+            case Type.LONG:
+                return LONG;
+            case Type.DOUBLE:
+                return DOUBLE;
+            case Type.ARRAY:
+                return type.getDescriptor();
+            case Type.OBJECT:
+                return type.getInternalName();
+            default:
+                return INTEGER;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.instrumentation;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.InsnList;
+
+import java.lang.management.ManagementFactory;
+
+import static no.kantega.labs.revoc.agent.Log.err;
+
+/**
+ * The bytecode size limits HotSpot applies when deciding whether to inline or compile a method.
+ *
+ * A method that fits within a limit before instrumentation should preferably still fit after.
+ * Otherwise it silently stops being inlined, or with the huge method limit, stops being compiled at all.
+ */
+public class JitBudget implements Opcodes {
+
+    /** Methods up to this size are inlined regardless of how often they are called **/
+    private final int maxInlineSize;
+
+    /** Frequently called methods up to this size are inlined **/
+    private final int freqInlineSize;
+
+    /** Larger methods are not compiled, unless -XX:-DontCompileHugeMethods is given **/
+    private final int hugeMethodLimit;
+
+    public JitBudget(int maxInlineSize, int freqInlineSize, int hugeMethodLimit) {
+        this.maxInlineSize = maxInlineSize;
+        this.freqInlineSize = freqInlineSize;
+        this.hugeMethodLimit = hugeMethodLimit;
+    }
+
+    /**
+     * Uses the HotSpot defaults.
+     */
+    public JitBudget() {
+        this(35, 325, 8000);
+    }
+
+    /**
+     * @return the limits of the running VM, using the defaults for limits not set on the command line
+     */
+    public static JitBudget fromRunningVm() {
+        int maxInlineSize = 35;
+        int freqInlineSize = 325;
+        int hugeMethodLimit = 8000;
+        try {
+            for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+                if (argument.startsWith("-XX:MaxInlineSize=")) {
+                    maxInlineSize = Integer.parseInt(argument.substring("-XX:MaxInlineSize=".length()));
+                } else if (argument.startsWith("-XX:FreqInlineSize=")) {
+                    freqInlineSize = Integer.parseInt(argument.substring("-XX:FreqInlineSize=".length()));
+                } else if (argument.equals("-XX:-DontCompileHugeMethods")) {
+                    hugeMethodLimit = Integer.MAX_VALUE;
+                }
+            }
+        } catch (RuntimeException e) {
+            err("Could not read JIT limits, using defaults: " + e);
+        }
+        return new JitBudget(maxInlineSize, freqInlineSize, hugeMethodLimit);
+    }
+
+    @Override
+    public String toString() {
+        return "MaxInlineSize=" + maxInlineSize + " FreqInlineSize=" + freqInlineSize + " HugeMethodLimit=" + hugeMethodLimit;
+    }
+
+    /**
+     * @return a description of the first limit the original method is within but the instrumented method exceeds, or null
+     */
+    String getCrossedLimit(int originalSize, int instrumentedSize) {
+        if (crosses(hugeMethodLimit, originalSize, instrumentedSize)) {
+            return "the huge method limit (" + hugeMethodLimit + ")";
+        } else if (crosses(freqInlineSize, originalSize, instrumentedSize)) {
+            return "FreqInlineSize (" + freqInlineSize + ")";
+        } else if (crosses(maxInlineSize, originalSize, instrumentedSize)) {
+            return "MaxInlineSize (" + maxInlineSize + ")";
+        }
+        return null;
+    }
+
+    boolean crossesHugeMethodLimit(int originalSize, int instrumentedSize) {
+        return crosses(hugeMethodLimit, originalSize, instrumentedSize);
+    }
+
+    private boolean crosses(int limit, int originalSize, int instrumentedSize) {
+        return originalSize <= limit && instrumentedSize > limit;
+    }
+
+    /**
+     * Estimates the size in bytes of the code of a method. Switch padding is counted as its maximum.
+     */
+    static int codeSize(InsnList instructions) {
+        MethodScan scan = new MethodScan(null, 0);
+        instructions.accept(scan);
+        return scan.getCodeSize();
+    }
+
+    static int varInsnSize(int var) {
+        return var <= 3 ? 1 : var <= 255 ? 2 : 4;
+    }
+
+    /**
+     * @return the size of the instruction pushing an int constant
+     */
+    static int constantSize(int num) {
+        return num <= 5 ? 1 : num < 128 ? 2 : 3;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.instrumentation;
+
+import no.kantega.labs.revoc.registry.BranchPoint;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * What the first pass needs to know about the instructions of a method, gathered in a single pass over them.
+ *
+ * Scanning the class reader ahead of the instrumentation lets methods needing no control flow analysis be
+ * instrumented as they are read, without building a tree of their instructions.
+ */
+class MethodScan extends MethodVisitor implements Opcodes {
+
+    private final String owner;
+    private final boolean isStatic;
+
+    private int codeSize;
+    /** Line number of each line number entry, in code order **/
+    private final List<Integer> lineNumbers = new ArrayList<Integer>();
+    /** Conditional jumps, each on the line before the line it is on **/
+    private final List<BranchPoint> branchPoints = new ArrayList<BranchPoint>();
+    private int currentLineNumber;
+    private int numReturns;
+    private int numThrows;
+    private int numInvokes;
+    private boolean canThrow;
+    private boolean hasSubroutines;
+    private final Set<Label> visitedLabels = new HashSet<Label>();
+    private boolean hasBackwardJumps;
+    private boolean afterLoadThis;
+    private int maxLocals;
+
+    /**
+     * @param owner internal name of the class declaring the method, or null if unknown
+     */
+    MethodScan(String owner, int access) {
+        super(ASM4);
+        this.owner = owner;
+        this.isStatic = (access & ACC_STATIC) != 0;
+    }
+
+    /**
+     * @return the estimated size in bytes of the code, with switch padding counted as its maximum
+     */
+    int getCodeSize() {
+        return codeSize;
+    }
+
+    List<Integer> getLineNumbers() {
+        return lineNumbers;
+    }
+
+    List<BranchPoint> getBranchPoints() {
+        return branchPoints;
+    }
+
+    int getNumReturns() {
+        return numReturns;
+    }
+
+    /**
+     * @return the number of returns and throws
+     */
+    int getNumExitPoints() {
+        return numReturns + numThrows;
+    }
+
+    int getNumInvokes() {
+        return numInvokes;
+    }
+
+    /**
+     * Some instruction may throw, apart from errors the virtual machine may raise anywhere.
+     * Field reads from this and static fields of the class itself are safe once the method runs, while
+     * invocations, other field accesses, array accesses, allocation, casts, division and monitors are not.
+     */
+    boolean canThrow() {
+        return canThrow;
+    }
+
+    boolean hasSubroutines() {
+        return hasSubroutines;
+    }
+
+    boolean hasBackwardJumps() {
+        return hasBackwardJumps;
+    }
+
+    int getMaxLocals() {
+        return maxLocals;
+    }
+
+    @Override
+    public void visitLineNumber(int line, Label start) {
+        lineNumbers.add(line);
+        currentLineNumber = line;
+    }
+
+    @Override
+    public void visitLabel(Label label) {
+        visitedLabels.add(label);
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+        instruction(1);
+        if (opcode >= IRETURN && opcode <= RETURN) {
+            numReturns++;
+        } else if (opcode == ATHROW) {
+            numThrows++;
+        }
+        canThrow |= (opcode >= IALOAD && opcode <= SALOAD) || (opcode >= IASTORE && opcode <= SASTORE)
+                || opcode == ARRAYLENGTH || opcode == ATHROW || opcode == MONITORENTER || opcode == MONITOREXIT
+                || opcode == IDIV || opcode == LDIV || opcode == IREM || opcode == LREM;
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand) {
+        instruction(opcode == SIPUSH ? 3 : 2);
+        canThrow |= opcode == NEWARRAY;
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int var) {
+        instruction(JitBudget.varInsnSize(var));
+        hasSubroutines |= opcode == RET;
+        afterLoadThis = !isStatic && opcode == ALOAD && var == 0;
+    }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+        instruction(3);
+        canThrow = true;
+    }
+
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+        boolean readsThis = afterLoadThis;
+        instruction(3);
+        if (opcode == GETFIELD) {
+            canThrow |= !readsThis;
+        } else if (opcode == GETSTATIC || opcode == PUTSTATIC) {
+            canThrow |= !owner.equals(this.owner);
+        } else {
+            canThrow = true;
+        }
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String desc) {
+        instruction(opcode == INVOKEINTERFACE ? 5 : 3);
+        numInvokes++;
+        canThrow = true;
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+        instruction(5);
+        numInvokes++;
+        canThrow = true;
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+        instruction(3);
+        if (opcode == JSR) {
+            hasSubroutines = true;
+            return;
+        }
+        if (opcode != GOTO) {
+            branchPoints.add(new BranchPoint(opcode, currentLineNumber - 1));
+        }
+        hasBackwardJumps |= visitedLabels.contains(label);
+    }
+
+    @Override
+    public void visitLdcInsn(Object cst) {
+        instruction(cst instanceof Long || cst instanceof Double ? 3 : 2);
+        canThrow |= cst instanceof Type || cst instanceof Handle;
+    }
+
+    @Override
+    public void visitIincInsn(int var, int increment) {
+        instruction(var > 255 || increment > Byte.MAX_VALUE || increment < Byte.MIN_VALUE ? 6 : 3);
+    }
+
+    @Override
+    public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+        instruction(16 + 4 * labels.length);
+    }
+
+    @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+        instruction(12 + 8 * labels.length);
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String desc, int dims) {
+        instruction(4);
+        canThrow = true;
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        this.maxLocals = maxLocals;
+    }
+
+    private void instruction(int size) {
+        codeSize += size;
+        afterLoadThis = false;
+    }
+}
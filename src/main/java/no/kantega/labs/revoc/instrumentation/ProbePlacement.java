@@ -0,0 +1,35 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.instrumentation;
+
+/**
+ * Where the counting probes of an instrumented method are placed.
+ */
+public enum ProbePlacement {
+
+    /** One counter for each line number in the method **/
+    LINES,
+
+    /** One counter for each basic block, line visits are derived from the block counts **/
+    BASIC_BLOCKS,
+
+    /**
+     * Counters only on the control flow edges outside a maximal spanning tree, block and branch visits are
+     * derived from the edge counts. Methods with exception handlers fall back to one counter per block.
+     */
+    EDGES
+}
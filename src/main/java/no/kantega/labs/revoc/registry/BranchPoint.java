@@ -17,20 +17,26 @@
 package no.kantega.labs.revoc.registry;
 
 import java.io.Serializable;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
- *
+ * A conditional jump and the line it is on. The visits of registered branch points are counted in
+ * Registry.branchVisits, the branch points of a coverage snapshot carry the counts at the time of the snapshot.
  */
 public class BranchPoint implements Serializable{
     private final int instruction;
     private final int linenumber;
-    private AtomicLong before = new AtomicLong();
-    private AtomicLong after = new AtomicLong();
+    private final long before;
+    private final long after;
 
     public BranchPoint(int instruction, int linenumber) {
+        this(instruction, linenumber, 0, 0);
+    }
+
+    public BranchPoint(int instruction, int linenumber, long before, long after) {
         this.instruction = instruction;
         this.linenumber = linenumber;
+        this.before = before;
+        this.after = after;
     }
 
     public int getInstruction() {
@@ -41,21 +47,12 @@ public class BranchPoint implements Serializable{
         return linenumber;
     }
 
-    public void before() {
-        before.incrementAndGet();
-    }
-
-
-    public  void after() {
-        after.incrementAndGet();
-    }
-
     public long getAfter() {
-        return after.longValue();
+        return after;
     }
 
     public long getBefore() {
-        return before.longValue();
+        return before;
     }
 
     public boolean isAlwaysBranched() {
@@ -64,17 +61,4 @@ public class BranchPoint implements Serializable{
     public boolean isNeverBranched() {
         return (getBefore()-getAfter()) == 0;
     }
-
-    public  void reset() {
-        before.set(0);
-        after.set(0);
-    }
-
-    public  void after(int num) {
-        after.addAndGet(num);
-    }
-
-    public  void before(int num) {
-        before.addAndGet(num);
-    }
-}
\ No newline at end of file
+}
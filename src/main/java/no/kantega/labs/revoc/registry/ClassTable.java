@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.registry;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Per class values of the Registry, indexed by class id.
+ *
+ * The table is split in fixed size segments, each created when the first class id in it is set and published with
+ * a compare and set. Segments are never copied or replaced, so registering classes takes no lock and never moves
+ * the counters of classes already registered, while readers see each value as soon as it is set.
+ */
+class ClassTable<T> {
+
+    static final int SEGMENT_BITS = 10;
+    static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    static final int MAX_SEGMENTS = 1 << 12;
+    static final int MAX_CLASSES = SEGMENT_SIZE * MAX_SEGMENTS;
+
+    private final AtomicReferenceArray<AtomicReferenceArray<T>> segments = new AtomicReferenceArray<AtomicReferenceArray<T>>(MAX_SEGMENTS);
+
+    /**
+     * @return the value of the class, or null if none was set
+     */
+    T get(int classId) {
+        AtomicReferenceArray<T> segment = segments.get(classId >>> SEGMENT_BITS);
+        return segment == null ? null : segment.get(classId & (SEGMENT_SIZE - 1));
+    }
+
+    void set(int classId, T value) {
+        segment(classId).set(classId & (SEGMENT_SIZE - 1), value);
+    }
+
+    /**
+     * Fills the array with the values of the first array.length class ids
+     */
+    T[] toArray(T[] array) {
+        for (int c = 0; c < array.length; c++) {
+            array[c] = get(c);
+        }
+        return array;
+    }
+
+    static <T> ClassTable<T> of(T[] values, int count) {
+        ClassTable<T> table = new ClassTable<T>();
+        for (int c = 0; c < count; c++) {
+            if (values[c] != null) {
+                table.set(c, values[c]);
+            }
+        }
+        return table;
+    }
+
+    private AtomicReferenceArray<T> segment(int classId) {
+        int index = classId >>> SEGMENT_BITS;
+        AtomicReferenceArray<T> segment = segments.get(index);
+        if (segment == null) {
+            segments.compareAndSet(index, null, new AtomicReferenceArray<T>(SEGMENT_SIZE));
+            segment = segments.get(index);
+        }
+        return segment;
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.registry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Line visit counters kept in a memory mapped file, so they outlive the JVM that counts them and can be read by
+ * another process while it runs. Several JVMs may count into the same file at once.
+ *
+ * The file starts with a header, followed by a chain of records, one per class. A class is identified by its name
+ * and a hash of its class bytes, and its record holds its line numbers and a visit count and last visit time for each
+ * line. Records are appended by a process holding a lock on the header, which readers take shared while they read
+ * the chain. The claiming process writes the size of the record first and marks it ready when it is written. A
+ * record still being written while the lock is free was left by a process that died, and is marked abandoned and
+ * skipped.
+ *
+ * Counts are added with a read, add and write of the counters of a class while holding a lock on them, so processes
+ * adding to the same class take turns.
+ */
+public class CounterFile {
+
+    static final int DEFAULT_CAPACITY = 64 << 20;
+
+    private static final long MAGIC = 0x5245564f43434e54L;
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 64;
+
+    private static final int SIZE = 0;
+    private static final int STATE = 4;
+    private static final int HASH = 8;
+    private static final int LINE_COUNT = 16;
+    private static final int NAME_LENGTH = 20;
+    private static final int NAME = 24;
+
+    private static final int WRITING = 0;
+    private static final int READY = 1;
+    private static final int ABANDONED = 2;
+
+    /** File locks are held by the whole JVM, which must not take overlapping locks from two threads **/
+    private static final Object fileLocks = new Object();
+
+    /** Stays open for locking while the file is mapped **/
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    /** Ready records read so far, and where to continue reading **/
+    private final List<Integer> records = new ArrayList<Integer>();
+    private int scanned = HEADER_SIZE;
+
+    private CounterFile(RandomAccessFile file, FileChannel.MapMode mode) throws IOException {
+        this.channel = file.getChannel();
+        this.buffer = channel.map(mode, 0, file.length());
+    }
+
+    /**
+     * Creates an empty counter file, replacing any existing file
+     */
+    static CounterFile create(File file, int capacity) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(capacity);
+            CounterFile counterFile = new CounterFile(raf, FileChannel.MapMode.READ_WRITE);
+            counterFile.buffer.putInt(8, VERSION);
+            counterFile.buffer.putLong(0, MAGIC);
+            return counterFile;
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Maps a counter file shared with other processes, creating it if it does not exist. Counts already in the
+     * file are kept.
+     */
+    static CounterFile attach(File file, int capacity) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            CounterFile counterFile;
+            synchronized (fileLocks) {
+                FileLock lock = raf.getChannel().lock(0, HEADER_SIZE, false);
+                try {
+                    if (raf.length() < capacity) {
+                        raf.setLength(capacity);
+                    }
+                    counterFile = new CounterFile(raf, FileChannel.MapMode.READ_WRITE);
+                    if (counterFile.buffer.getLong(0) == 0) {
+                        counterFile.buffer.putInt(8, VERSION);
+                        counterFile.buffer.putLong(0, MAGIC);
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+            counterFile.checkHeader(file);
+            return counterFile;
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Maps a counter file for reading. Classes and counts added by the writing JVMs are seen as they are written.
+     */
+    public static CounterFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < HEADER_SIZE) {
+                throw new IOException(file + " is not a counter file");
+            }
+            CounterFile counterFile = new CounterFile(raf, FileChannel.MapMode.READ_ONLY);
+            counterFile.checkHeader(file);
+            return counterFile;
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    private void checkHeader(File file) throws IOException {
+        if (buffer.getLong(0) != MAGIC) {
+            throw new IOException(file + " is not a counter file");
+        }
+        if (buffer.getInt(8) != VERSION) {
+            throw new IOException(file + " has version " + buffer.getInt(8) + ", expected " + VERSION);
+        }
+    }
+
+    /**
+     * @return the hash identifying the class bytes in a counter file, with the class name
+     */
+    public static long hash(byte[] classBytes) {
+        // 64 bit FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : classBytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Finds the record of a class, appending one with zero counts if no process has added the class yet
+     *
+     * @return the counters of the class, or null if the file is full
+     */
+    Counters addClass(String name, long hash, int[] lines) throws IOException {
+        byte[] nameBytes = utf8(name);
+        int linesOffset = align(NAME + nameBytes.length, 4);
+        int visitsOffset = align(linesOffset + 4 * lines.length, 8);
+        int size = visitsOffset + 16 * lines.length;
+
+        synchronized (fileLocks) {
+            FileLock lock = channel.lock(0, HEADER_SIZE, false);
+            try {
+                int record = HEADER_SIZE;
+                for (int recordSize = buffer.getInt(record + SIZE); recordSize != 0; recordSize = buffer.getInt(record + SIZE)) {
+                    if (buffer.getInt(record + STATE) == WRITING) {
+                        buffer.putInt(record + STATE, ABANDONED);
+                    } else if (isClass(record, nameBytes, hash, lines.length)) {
+                        return counters(record);
+                    }
+                    record += recordSize;
+                }
+                // The next record's size must also fit
+                if (record + size + 4 > buffer.capacity()) {
+                    return null;
+                }
+
+                buffer.putInt(record + SIZE, size);
+                buffer.putLong(record + HASH, hash);
+                buffer.putInt(record + LINE_COUNT, lines.length);
+                buffer.putInt(record + NAME_LENGTH, nameBytes.length);
+                for (int i = 0; i < nameBytes.length; i++) {
+                    buffer.put(record + NAME + i, nameBytes[i]);
+                }
+                for (int l = 0; l < lines.length; l++) {
+                    buffer.putInt(record + linesOffset + 4 * l, lines[l]);
+                }
+                buffer.putInt(record + STATE, READY);
+                return counters(record);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * @return whether the record is the ready record of the class
+     */
+    private boolean isClass(int record, byte[] nameBytes, long hash, int lineCount) {
+        if (buffer.getInt(record + STATE) != READY || buffer.getLong(record + HASH) != hash || buffer.getInt(record + LINE_COUNT) != lineCount
+                || buffer.getInt(record + NAME_LENGTH) != nameBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < nameBytes.length; i++) {
+            if (buffer.get(record + NAME + i) != nameBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Counters counters(int record) {
+        return new Counters(visitsOffset(record), buffer.getInt(record + LINE_COUNT));
+    }
+
+    /**
+     * Adds visits to the lines of a class and raises their last visit times, holding a lock on the counters of the
+     * class so that counts other processes add at the same time are not lost
+     *
+     * @param visits the visits to add to each line
+     * @param times the time of the last visit to each line, or 0 if it was not visited
+     */
+    void add(Counters counters, long[] visits, long[] times) throws IOException {
+        if (counters.lines == 0) {
+            return;
+        }
+        synchronized (fileLocks) {
+            FileLock lock = channel.lock(counters.offset, 16L * counters.lines, false);
+            try {
+                for (int l = 0; l < counters.lines; l++) {
+                    int visitsIndex = counters.offset + 8 * l;
+                    if (visits[l] != 0) {
+                        buffer.putLong(visitsIndex, buffer.getLong(visitsIndex) + visits[l]);
+                    }
+                    int timeIndex = visitsIndex + 8 * counters.lines;
+                    if (buffer.getLong(timeIndex) < times[l]) {
+                        buffer.putLong(timeIndex, times[l]);
+                    }
+                }
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Writes the counts to the disk, which is not needed for them to survive the JVM but only the machine
+     */
+    void force() {
+        buffer.force();
+    }
+
+    /**
+     * @return the number of classes, which grows as the writing JVMs add classes
+     */
+    public synchronized int getClassCount() {
+        synchronized (fileLocks) {
+            try {
+                FileLock lock = channel.lock(0, HEADER_SIZE, true);
+                try {
+                    // No process is writing while the lock is held, so records not ready are abandoned
+                    while (scanned + 4 <= buffer.capacity()) {
+                        int size = buffer.getInt(scanned + SIZE);
+                        if (size == 0) {
+                            break;
+                        }
+                        if (buffer.getInt(scanned + STATE) == READY) {
+                            records.add(scanned);
+                        }
+                        scanned += size;
+                    }
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return records.size();
+    }
+
+    public String getClassName(int index) {
+        int record = record(index);
+        byte[] nameBytes = new byte[buffer.getInt(record + NAME_LENGTH)];
+        for (int i = 0; i < nameBytes.length; i++) {
+            nameBytes[i] = buffer.get(record + NAME + i);
+        }
+        try {
+            return new String(nameBytes, "utf-8");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public long getClassHash(int index) {
+        return buffer.getLong(record(index) + HASH);
+    }
+
+    /**
+     * @return the line numbers of the class, in the order of its counters
+     */
+    public int[] getLines(int index) {
+        int record = record(index);
+        int[] lines = new int[buffer.getInt(record + LINE_COUNT)];
+        int linesOffset = align(record + NAME + buffer.getInt(record + NAME_LENGTH), 4);
+        for (int l = 0; l < lines.length; l++) {
+            lines[l] = buffer.getInt(linesOffset + 4 * l);
+        }
+        return lines;
+    }
+
+    public long getVisits(int index, int line) {
+        return readCounter(visitsOffset(record(index)) + 8 * line);
+    }
+
+    /**
+     * @return the time of the last visit to the line, or 0 if it was never visited
+     */
+    public long getTime(int index, int line) {
+        int record = record(index);
+        return readCounter(visitsOffset(record) + 8 * (buffer.getInt(record + LINE_COUNT) + line));
+    }
+
+    /**
+     * Reads a counter holding a shared lock on it, so that a counter another process is adding to is not read torn
+     */
+    private long readCounter(int position) {
+        synchronized (fileLocks) {
+            try {
+                FileLock lock = channel.lock(position, 8, true);
+                try {
+                    return buffer.getLong(position);
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private int visitsOffset(int record) {
+        int linesOffset = align(record + NAME + buffer.getInt(record + NAME_LENGTH), 4);
+        return align(linesOffset + 4 * buffer.getInt(record + LINE_COUNT), 8);
+    }
+
+    private synchronized int record(int index) {
+        if (index >= records.size() && index >= getClassCount()) {
+            throw new IndexOutOfBoundsException("No class " + index + " in counter file");
+        }
+        return records.get(index);
+    }
+
+    private static int align(int offset, int alignment) {
+        return (offset + alignment - 1) & -alignment;
+    }
+
+    private static byte[] utf8(String name) {
+        try {
+            return name.getBytes("utf-8");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The counters of one class in the file, and the counts this JVM has added to them
+     */
+    static class Counters {
+        final int offset;
+        final int lines;
+        final long[] written;
+
+        Counters(int offset, int lines) {
+            this.offset = offset;
+            this.lines = lines;
+            this.written = new long[lines];
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.registry;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Striped layout of the per class counter arrays.
+ *
+ * Each counter array holds one stripe per group of threads, and a thread only updates the cells in its own stripe.
+ * Threads in different stripes then write to different cache lines instead of contending for the same counters.
+ * Stripes are summed, or for times the maximum is taken, when the counters are read.
+ *
+ * Striping multiplies the memory of every class's counters, hot or cold, so there is a single unpadded stripe unless
+ * more are asked for.
+ */
+class CounterStripes {
+
+    /** Longs in a 64 byte cache line, each stripe is padded to a whole number of cache lines **/
+    private static final int LINE_LONGS = 8;
+
+    private static int stripeShift = 0;
+
+    /**
+     * Sets the number of stripes, rounded up to a power of two. Must be called before any counters are created.
+     */
+    static void setStripes(int stripes) {
+        stripeShift = 32 - Integer.numberOfLeadingZeros(Math.max(stripes, 1) - 1);
+    }
+
+    static int getStripes() {
+        return 1 << stripeShift;
+    }
+
+    static AtomicLongArray newCounters(int length) {
+        // A single stripe shares no cache lines with other stripes, so needs no padding
+        int stride = stripeShift == 0 ? length : (length + LINE_LONGS - 1) & -LINE_LONGS;
+        return new AtomicLongArray(stride << stripeShift);
+    }
+
+    /**
+     * @return the index of the current thread's stripe in the counters
+     */
+    static int offset(AtomicLongArray counters) {
+        int stripe = (int) Thread.currentThread().getId() & ((1 << stripeShift) - 1);
+        return stripe * (counters.length() >> stripeShift);
+    }
+
+    static long[] sum(AtomicLongArray counters) {
+        int stride = counters.length() >> stripeShift;
+        long[] sum = new long[stride];
+        for (int i = 0; i < counters.length(); i++) {
+            sum[i % stride] += counters.get(i);
+        }
+        return sum;
+    }
+
+    static long[] max(AtomicLongArray times) {
+        int stride = times.length() >> stripeShift;
+        long[] max = new long[stride];
+        for (int i = 0; i < times.length(); i++) {
+            max[i % stride] = Math.max(max[i % stride], times.get(i));
+        }
+        return max;
+    }
+
+    /**
+     * @return the sum of one counter across the stripes
+     */
+    static long sum(AtomicLongArray counters, int index) {
+        int stride = counters.length() >> stripeShift;
+        long sum = 0;
+        for (int i = index; i < counters.length(); i += stride) {
+            sum += counters.get(i);
+        }
+        return sum;
+    }
+
+    static long max(AtomicLongArray times, int index) {
+        int stride = times.length() >> stripeShift;
+        long max = 0;
+        for (int i = index; i < times.length(); i += stride) {
+            max = Math.max(max, times.get(i));
+        }
+        return max;
+    }
+
+    /**
+     * @return the summed counters of each class, independent of the number of stripes
+     */
+    static AtomicLongArray[] collapse(AtomicLongArray[] counters) {
+        AtomicLongArray[] collapsed = new AtomicLongArray[counters.length];
+        for (int c = 0; c < counters.length; c++) {
+            if (counters[c] != null) {
+                collapsed[c] = new AtomicLongArray(sum(counters[c]));
+            }
+        }
+        return collapsed;
+    }
+
+    /**
+     * @return striped counters holding the collapsed counts in the first stripe
+     */
+    static AtomicLongArray[] expand(AtomicLongArray[] collapsed) {
+        AtomicLongArray[] counters = new AtomicLongArray[collapsed.length];
+        for (int c = 0; c < collapsed.length; c++) {
+            if (collapsed[c] != null) {
+                counters[c] = newCounters(collapsed[c].length());
+                for (int i = 0; i < collapsed[c].length(); i++) {
+                    counters[c].set(i, collapsed[c].get(i));
+                }
+            }
+        }
+        return counters;
+    }
+}
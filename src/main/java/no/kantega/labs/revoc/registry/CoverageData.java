@@ -24,6 +24,11 @@ public interface CoverageData {
     long[] getLinesVisited(int classId);
     long[] getLinesVisitTimes(int classId);
 
+    /**
+     * @return the last invocation time of each method, 0 for methods never invoked, or null unless the class has method coverage
+     */
+    long[] getMethodVisitTimes(int classId);
+
     String[] getClassNames();
     String[][] getMethodNames();
     String[][] getMethodDescriptions();
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.registry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The coverage of the registered classes at the time of a snapshot.
+ *
+ * A snapshot taken from a previous one shares its arrays, growing them only when classes were registered since.
+ * The Registry then fills in just the classes that changed, so the previous snapshot is no longer valid.
+ */
+class CoverageSnapshot implements CoverageData {
+
+    /** The class table of the Registry the snapshot was taken from, which is replaced when the Registry is reset **/
+    final Object registry;
+    final int classCount;
+    final String[] classNames;
+    final int[] classLoaders;
+    final String[][] methodNames;
+    final String[][] methodDescs;
+    final String[] sourceFiles;
+    final long[][] lineVisits;
+    final long[][] lineTimes;
+    final long[][] methodVisitTimes;
+    final BranchPoint[][] branchPoints;
+    /** Classes that were fully registered when snapshotted, the others are taken again by the next snapshot **/
+    final boolean[] complete;
+
+    CoverageSnapshot(Object registry, int classCount, CoverageSnapshot previous) {
+        this.registry = registry;
+        this.classCount = classCount;
+        if (previous == null) {
+            classNames = new String[classCount];
+            classLoaders = new int[classCount];
+            methodNames = new String[classCount][];
+            methodDescs = new String[classCount][];
+            sourceFiles = new String[classCount];
+            lineVisits = new long[classCount][];
+            lineTimes = new long[classCount][];
+            methodVisitTimes = new long[classCount][];
+            branchPoints = new BranchPoint[classCount][];
+            complete = new boolean[classCount];
+        } else {
+            classNames = grow(previous.classNames, classCount);
+            classLoaders = previous.classLoaders.length == classCount ? previous.classLoaders : Arrays.copyOf(previous.classLoaders, classCount);
+            methodNames = grow(previous.methodNames, classCount);
+            methodDescs = grow(previous.methodDescs, classCount);
+            sourceFiles = grow(previous.sourceFiles, classCount);
+            lineVisits = grow(previous.lineVisits, classCount);
+            lineTimes = grow(previous.lineTimes, classCount);
+            methodVisitTimes = grow(previous.methodVisitTimes, classCount);
+            branchPoints = grow(previous.branchPoints, classCount);
+            complete = previous.complete.length == classCount ? previous.complete : Arrays.copyOf(previous.complete, classCount);
+        }
+    }
+
+    private static <T> T[] grow(T[] array, int length) {
+        return array.length == length ? array : Arrays.copyOf(array, length);
+    }
+
+    /**
+     * @return the buffer if it has the given length, or else a new array
+     */
+    static long[] reuse(long[] buffer, int length) {
+        return buffer != null && buffer.length == length ? buffer : new long[length];
+    }
+
+    public long[] getLinesVisited(int classId) {
+        return lineVisits[classId];
+    }
+
+    public long[] getLinesVisitTimes(int classId) {
+        return lineTimes[classId];
+    }
+
+    public long[] getMethodVisitTimes(int classId) {
+        return methodVisitTimes[classId];
+    }
+
+    public String[] getClassNames() {
+        return classNames;
+    }
+
+    public int[] getClassLoaders() {
+        return classLoaders;
+    }
+
+    public ClassLoader getClassLoader(int i) {
+        return Registry.getClassLoader(i);
+    }
+
+    public String[] getSourceFiles() {
+        return sourceFiles;
+    }
+
+    public String[][] getMethodNames() {
+        return methodNames;
+    }
+
+    public String[][] getMethodDescriptions() {
+        return methodDescs;
+    }
+
+    public BranchPoint[] getBranchPoints(int classId) {
+        return branchPoints[classId];
+    }
+
+    public BranchPoint[] getBranchPointsForLine(int classId, int lineNumber) {
+        List<BranchPoint> points = new ArrayList<BranchPoint>();
+        for (BranchPoint b : branchPoints[classId]) {
+            if (b.getLinenumber() == lineNumber) {
+                points.add(b);
+            }
+        }
+        return points.toArray(new BranchPoint[points.size()]);
+    }
+}
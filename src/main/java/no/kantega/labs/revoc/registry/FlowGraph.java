@@ -0,0 +1,195 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.registry;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Describes how the block visits of one method are reconstructed from its edge counters.
+ *
+ * Only edges outside a spanning tree of the control flow graph have counters. The count of the remaining edges
+ * follows from flow conservation: what flows into a block flows out of it. The exit of the method has block
+ * index numBlocks and is connected back to the entry block by a virtual edge. Exceptions leaving the method are
+ * edges to the exit from the blocks that may throw them.
+ *
+ * Methods where flow is not conserved have no edges, their blocks are counted directly.
+ */
+public class FlowGraph implements Serializable {
+
+    private final int firstBlock;
+    private final int numBlocks;
+
+    private final int[] edgeSources;
+    private final int[] edgeTargets;
+    /** Counter of each edge, -1 for edges in the spanning tree **/
+    private final int[] edgeCounters;
+
+    /** Counter of each block when blocks are counted directly, otherwise null **/
+    private final int[] blockCounters;
+
+    /** Class branch point index, block and fall through edge of each conditional jump whose visits are derived **/
+    private final int[] branchIndexes;
+    private final int[] branchBlocks;
+    private final int[] branchEdges;
+
+    public FlowGraph(int firstBlock, int numBlocks, int[] edgeSources, int[] edgeTargets, int[] edgeCounters, int[] branchIndexes, int[] branchBlocks, int[] branchEdges) {
+        this.firstBlock = firstBlock;
+        this.numBlocks = numBlocks;
+        this.edgeSources = edgeSources;
+        this.edgeTargets = edgeTargets;
+        this.edgeCounters = edgeCounters;
+        this.blockCounters = null;
+        this.branchIndexes = branchIndexes;
+        this.branchBlocks = branchBlocks;
+        this.branchEdges = branchEdges;
+    }
+
+    public FlowGraph(int firstBlock, int[] blockCounters) {
+        this.firstBlock = firstBlock;
+        this.numBlocks = blockCounters.length;
+        this.edgeSources = new int[0];
+        this.edgeTargets = new int[0];
+        this.edgeCounters = new int[0];
+        this.blockCounters = blockCounters;
+        this.branchIndexes = new int[0];
+        this.branchBlocks = new int[0];
+        this.branchEdges = new int[0];
+    }
+
+    /**
+     * Adds the visits and last visit time of each block of this method to the class wide block arrays.
+     * A block with no counted edges gets the latest time of any counter in the method.
+     */
+    void addBlockVisits(long[] counters, long[] counterTimes, long[] blockVisits, long[] blockTimes) {
+        if (blockCounters != null) {
+            for (int b = 0; b < numBlocks; b++) {
+                blockVisits[firstBlock + b] += counters[blockCounters[b]];
+                blockTimes[firstBlock + b] = Math.max(blockTimes[firstBlock + b], counterTimes[blockCounters[b]]);
+            }
+            return;
+        }
+
+        long[] edgeVisits = getEdgeVisits(counters);
+
+        long methodTime = 0;
+        long[] times = new long[numBlocks + 1];
+        for (int e = 0; e < edgeCounters.length; e++) {
+            if (edgeCounters[e] >= 0) {
+                long time = counterTimes[edgeCounters[e]];
+                methodTime = Math.max(methodTime, time);
+                times[edgeSources[e]] = Math.max(times[edgeSources[e]], time);
+                times[edgeTargets[e]] = Math.max(times[edgeTargets[e]], time);
+            }
+        }
+
+        long[] visits = new long[numBlocks + 1];
+        for (int e = 0; e < edgeTargets.length; e++) {
+            visits[edgeTargets[e]] += edgeVisits[e];
+        }
+        for (int b = 0; b < numBlocks; b++) {
+            // Counters are read while invocations are running, so a block may come out just below zero
+            blockVisits[firstBlock + b] += Math.max(0, visits[b]);
+            blockTimes[firstBlock + b] = Math.max(blockTimes[firstBlock + b], times[b] != 0 ? times[b] : methodTime);
+        }
+    }
+
+    /**
+     * Adds the derived visits of the conditional jumps in this method to the class branch visits,
+     * which hold the before and after count of each branch point. An exception leaving the block
+     * before its jump is not a visit.
+     */
+    void addBranchVisits(long[] counters, long[] branchVisits) {
+        if (branchIndexes.length == 0) {
+            return;
+        }
+        long[] edgeVisits = getEdgeVisits(counters);
+        for (int i = 0; i < branchIndexes.length; i++) {
+            long before = 0;
+            for (int e = 0; e < edgeSources.length; e++) {
+                if (edgeSources[e] == branchBlocks[i] && edgeTargets[e] < numBlocks) {
+                    before += edgeVisits[e];
+                }
+            }
+            branchVisits[2 * branchIndexes[i]] += Math.max(0, before);
+            branchVisits[2 * branchIndexes[i] + 1] += Math.max(0, edgeVisits[branchEdges[i]]);
+        }
+    }
+
+    /**
+     * Solves the count of each spanning tree edge. A block with a single unknown edge gives its count by conservation,
+     * which in turn may leave a neighbouring block with a single unknown edge.
+     * The counts are not clamped, a negative count means the counters were read while being incremented.
+     */
+    long[] getEdgeVisits(long[] counters) {
+        int numEdges = edgeCounters.length;
+        long[] visits = new long[numEdges];
+        boolean[] known = new boolean[numEdges];
+
+        List<List<Integer>> incident = new ArrayList<List<Integer>>();
+        for (int b = 0; b <= numBlocks; b++) {
+            incident.add(new ArrayList<Integer>());
+        }
+        int[] unknown = new int[numBlocks + 1];
+        for (int e = 0; e < numEdges; e++) {
+            if (edgeCounters[e] >= 0) {
+                known[e] = true;
+                visits[e] = counters[edgeCounters[e]];
+            } else {
+                unknown[edgeSources[e]]++;
+                unknown[edgeTargets[e]]++;
+            }
+            incident.get(edgeSources[e]).add(e);
+            if (edgeTargets[e] != edgeSources[e]) {
+                incident.get(edgeTargets[e]).add(e);
+            }
+        }
+
+        LinkedList<Integer> work = new LinkedList<Integer>();
+        for (int b = 0; b <= numBlocks; b++) {
+            if (unknown[b] == 1) {
+                work.add(b);
+            }
+        }
+        while (!work.isEmpty()) {
+            int block = work.removeFirst();
+            if (unknown[block] != 1) {
+                continue;
+            }
+            long flow = 0;
+            int missing = -1;
+            for (int e : incident.get(block)) {
+                if (!known[e]) {
+                    missing = e;
+                } else if (edgeTargets[e] != edgeSources[e]) {
+                    flow += edgeTargets[e] == block ? visits[e] : -visits[e];
+                }
+            }
+            visits[missing] = edgeTargets[missing] == block ? -flow : flow;
+            known[missing] = true;
+            unknown[edgeSources[missing]]--;
+            unknown[edgeTargets[missing]]--;
+            int other = edgeSources[missing] == block ? edgeTargets[missing] : edgeSources[missing];
+            if (unknown[other] == 1) {
+                work.add(other);
+            }
+        }
+        return visits;
+    }
+}
@@ -27,7 +27,7 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
@@ -35,20 +35,69 @@ import java.util.concurrent.atomic.AtomicLongArray;
  */
 public abstract class Registry {
 
-    private static int classCount = 0;
-    private static final int INITIAL_NUM_CLASSES = 1;
-    private static String[] classNames;
+    /** Class ids are handed out in order, a class is fully registered once its lines are set **/
+    private static AtomicInteger classCount;
+    private static ClassTable<String> classNames;
     private static ConcurrentMap<Integer, ClassNameMap> classNamesMap;
 
-    private static String[] sourceFiles;
-    private static int[] classLoaders;
-    public static int[][] lines;
-    public static AtomicLongArray[] lineVisits;
-    public static AtomicLongArray[] lineTimes;
-    public static AtomicIntegerArray classTouches;
-    private static BranchPoint[][] branchPoints;
+    private static ClassTable<String> sourceFiles;
+    private static ClassTable<Integer> classLoaders;
+    private static ClassTable<int[]> lines;
+    private static ClassTable<AtomicLongArray> lineVisits;
+    private static ClassTable<AtomicLongArray> lineTimes;
+    private static TouchedClasses classTouches;
+    /** Line counters of each class in the counter file, if there is one, written by the change detector **/
+    private static volatile CounterFile counterFile;
+    private static ClassTable<CounterFile.Counters> fileCounters;
+    private static boolean counterShutdownHook;
+    /** Executed lines of classes instrumented for hit-only coverage, written with plain stores **/
+    private static ClassTable<boolean[]> lineHits;
+    private static ClassTable<BranchPoint[]> branchPoints;
+    /** Before and after count of each branch point, at index 2 * branch and 2 * branch + 1 **/
+    private static ClassTable<AtomicLongArray> branchVisits;
+
+    /** Last invocation time of each method in classes instrumented for method coverage, 0 if never invoked **/
+    private static ClassTable<long[]> methodVisitTimes;
+    /** Class line indexes of each method in classes instrumented for method coverage **/
+    private static ClassTable<int[][]> methodLines;
+
+    private static ClassTable<AtomicLongArray> blockVisits;
+    private static ClassTable<AtomicLongArray> blockTimes;
+    private static ClassTable<int[][]> blockLines;
+
+    private static ClassTable<AtomicLongArray> edgeVisits;
+    private static ClassTable<AtomicLongArray> edgeTimes;
+    private static ClassTable<FlowGraph[]> flowGraphs;
+
+    /** Classes counting only 1 in N invocations have their counts scaled by N, other classes have none **/
+    private static ClassTable<Integer> sampleRates;
+
+    /** Slot 0 is the scratch buffer of unsampled invocations, which is never registered **/
+    private static final AtomicInteger scratchSlots = new AtomicInteger(1);
+
+    private static final ThreadLocal<int[][]> scratchInts = new ThreadLocal<int[][]>() {
+        @Override
+        protected int[][] initialValue() {
+            return new int[scratchSlots.get()][];
+        }
+    };
+
+    private static final ThreadLocal<long[][]> scratchLongs = new ThreadLocal<long[][]>() {
+        @Override
+        protected long[][] initialValue() {
+            return new long[scratchSlots.get()][];
+        }
+    };
 
-    public static volatile long time = 0;
+    /** Countdown to the next sampled invocation and random state of each thread **/
+    private static final ThreadLocal<int[]> sampleCountdown = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[] {0, System.identityHashCode(Thread.currentThread()) | 1};
+        }
+    };
+
+    public static volatile long time = System.currentTimeMillis();
     public static final int CHECK_RESOLUTION_MILLIS = 100;
     public static final int NOTIFY_CHANGE_RESOLUTION_MILLIS = 1000;
     public static final int TIME_RESOLUTION_MILLIS = 50;
@@ -59,8 +108,8 @@ public abstract class Registry {
 
     private static final ThreadMap threadMap = new ThreadMap();
 
-    private static String[][] methodNames;
-    private static String[][] methodDescs;
+    private static ClassTable<String[]> methodNames;
+    private static ClassTable<String[]> methodDescs;
 
     public static Collection<Frame> getFrames() {
         Collection<FrameMap> frameMaps;
@@ -181,18 +230,16 @@ public abstract class Registry {
             @Override
             public void run() {
                 BitSet bs = new BitSet();
+                BitSet touched = new BitSet();
 
                 while (true) {
 
-                    AtomicIntegerArray classes = classTouches;
-
-                    for(int i = 0; i < classes.length(); i++) {
-                        int last = classes.get(i);
-                        if(last != 0) {
-                            bs.set(i);
-                            classes.set(i, 0);
-                        }
+                    classTouches.drainTo(touched);
+                    for (int c = touched.nextSetBit(0); counterFile != null && c >= 0; c = touched.nextSetBit(c + 1)) {
+                        writeCounters(c);
                     }
+                    bs.or(touched);
+                    touched.clear();
                     long now = System.currentTimeMillis();
                     long sincelast = now - lastInvoke;
                     if (bs.cardinality() > 0 && sincelast > NOTIFY_CHANGE_RESOLUTION_MILLIS ) {
@@ -222,6 +269,15 @@ public abstract class Registry {
         }.start();
     }
 
+    private static void addCounterShutdownHook() {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                writeCounters();
+            }
+        });
+    }
+
     private static void addReportShutdownHook(final String report) {
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
@@ -243,22 +299,40 @@ public abstract class Registry {
         try {
             ObjectInputStream in = new ObjectInputStream(inputStream);
             Save s = (Save) in.readObject();
-            classCount = s.classCount;
-            classNames = s.classNames;
-            classLoaders = s.classLoaders;
-            methodNames = s.methodNames;
-            methodDescs = s.methodDescs;
+            int count = s.classCount;
+            classNames = ClassTable.of(s.classNames, count);
+            classLoaders = ClassTable.of(toIntegers(s.classLoaders), count);
+            methodNames = ClassTable.of(s.methodNames, count);
+            methodDescs = ClassTable.of(s.methodDescs, count);
             classNamesMap = new ConcurrentHashMap<Integer, ClassNameMap>();
-            for (int i = 0; i < classCount; i++) {
-                if(!classNamesMap.containsKey(classLoaders[i])) {
-                    classNamesMap.putIfAbsent(classLoaders[i], new ClassNameMap(null));
+            for (int i = 0; i < count; i++) {
+                if(!classNamesMap.containsKey(s.classLoaders[i])) {
+                    classNamesMap.putIfAbsent(s.classLoaders[i], new ClassNameMap(null));
                 }
-                classNamesMap.get(classLoaders[i]).put(classNames[i], i);
+                classNamesMap.get(s.classLoaders[i]).put(s.classNames[i], i);
             }
-            sourceFiles = s.sourceFiles;
-            lines = s.lines;
-            lineVisits = s.lineVisits;
-            branchPoints = s.branchPoints;
+            sourceFiles = ClassTable.of(s.sourceFiles, count);
+            AtomicLongArray[] visits = CounterStripes.expand(s.lineVisits);
+            lineVisits = ClassTable.of(visits, count);
+            lineTimes = ClassTable.of(newTimes(visits), count);
+            lines = ClassTable.of(s.lines, count);
+            lineHits = ClassTable.of(s.lineHits, count);
+            methodLines = ClassTable.of(s.methodLines, count);
+            methodVisitTimes = ClassTable.of(s.methodVisitTimes, count);
+            branchVisits = ClassTable.of(CounterStripes.expand(s.branchVisits), count);
+            branchPoints = ClassTable.of(s.branchPoints, count);
+            blockLines = ClassTable.of(s.blockLines, count);
+            visits = CounterStripes.expand(s.blockVisits);
+            blockVisits = ClassTable.of(visits, count);
+            blockTimes = ClassTable.of(newTimes(visits), count);
+            visits = CounterStripes.expand(s.edgeVisits);
+            edgeVisits = ClassTable.of(visits, count);
+            edgeTimes = ClassTable.of(newTimes(visits), count);
+            flowGraphs = ClassTable.of(s.flowGraphs, count);
+            sampleRates = ClassTable.of(toIntegers(s.sampleRates), count);
+            classTouches = new TouchedClasses();
+            fileCounters = new ClassTable<CounterFile.Counters>();
+            classCount = new AtomicInteger(count);
             in.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -267,11 +341,47 @@ public abstract class Registry {
         }
     }
 
+    private static AtomicLongArray[] newTimes(AtomicLongArray[] visits) {
+        AtomicLongArray[] times = new AtomicLongArray[visits.length];
+        for (int i = 0; i < visits.length; i++) {
+            if (visits[i] != null) {
+                times[i] = new AtomicLongArray(visits[i].length());
+            }
+        }
+        return times;
+    }
+
+    private static Integer[] toIntegers(int[] values) {
+        Integer[] integers = new Integer[values.length];
+        for (int i = 0; i < values.length; i++) {
+            integers[i] = values[i];
+        }
+        return integers;
+    }
+
+    private static int[] toInts(ClassTable<Integer> table, int count) {
+        int[] ints = new int[count];
+        for (int i = 0; i < count; i++) {
+            Integer value = table.get(i);
+            ints[i] = value == null ? 0 : value;
+        }
+        return ints;
+    }
+
     public static void save(OutputStream outputStream) {
         try {
 
             ObjectOutputStream out = new ObjectOutputStream(outputStream);
-            Save s = new Save(classCount, classNames, classLoaders, methodNames, methodDescs, sourceFiles, lines, lineVisits, branchPoints);
+            int count = classCount.get();
+            Save s = new Save(count, classNames.toArray(new String[count]), toInts(classLoaders, count),
+                    methodNames.toArray(new String[count][]), methodDescs.toArray(new String[count][]),
+                    sourceFiles.toArray(new String[count]), lines.toArray(new int[count][]),
+                    CounterStripes.collapse(lineVisits.toArray(new AtomicLongArray[count])), lineHits.toArray(new boolean[count][]),
+                    methodVisitTimes.toArray(new long[count][]), methodLines.toArray(new int[count][][]),
+                    branchPoints.toArray(new BranchPoint[count][]), CounterStripes.collapse(branchVisits.toArray(new AtomicLongArray[count])),
+                    blockLines.toArray(new int[count][][]), CounterStripes.collapse(blockVisits.toArray(new AtomicLongArray[count])),
+                    flowGraphs.toArray(new FlowGraph[count][]), CounterStripes.collapse(edgeVisits.toArray(new AtomicLongArray[count])),
+                    toInts(sampleRates, count));
             out.writeObject(s);
             out.close();
         } catch (IOException e) {
@@ -280,292 +390,610 @@ public abstract class Registry {
     }
 
     public static void registerLineVisited(int classId, int lineId) {
-        lineVisits[classId].incrementAndGet(lineId);
+        AtomicLongArray visits = lineVisits.get(classId);
+        visits.incrementAndGet(CounterStripes.offset(visits) + lineId);
+    }
+
+    /**
+     * The counters of a class are fetched once, when the instrumented class is initialized
+     */
+    public static AtomicLongArray getLineVisits(int classId) {
+        return lineVisits.get(classId);
+    }
+
+    public static AtomicLongArray getLineTimes(int classId) {
+        return lineTimes.get(classId);
+    }
+
+    public static boolean[] getLineHits(int classId) {
+        return lineHits.get(classId);
+    }
+
+    public static long[] getMethodVisitTimes(int classId) {
+        return methodVisitTimes.get(classId);
+    }
+
+    public static AtomicLongArray getBranchVisits(int classId) {
+        return branchVisits.get(classId);
+    }
+
+    public static AtomicLongArray getBlockVisits(int classId) {
+        return blockVisits.get(classId);
+    }
+
+    public static AtomicLongArray getBlockTimes(int classId) {
+        return blockTimes.get(classId);
+    }
+
+    public static AtomicLongArray getEdgeVisits(int classId) {
+        return edgeVisits.get(classId);
+    }
+
+    public static AtomicLongArray getEdgeTimes(int classId) {
+        return edgeTimes.get(classId);
     }
 
     public static void registerLineTimeVisited(AtomicLongArray lineVisits, AtomicLongArray lineTimes, int lineId, int numvisits, long time) {
-        lineVisits.addAndGet(lineId, numvisits);
         if(numvisits != 0) {
-            lineTimes.set(lineId, time);
+            int offset = CounterStripes.offset(lineVisits);
+            lineVisits.addAndGet(offset + lineId, numvisits);
+            lineTimes.set(offset + lineId, time);
         }
     }
 
     public static void registerLineVisited(AtomicLongArray lineVisits, int lineId, int numvisits) {
-        lineVisits.addAndGet(lineId, numvisits);
+        if(numvisits != 0) {
+            lineVisits.addAndGet(CounterStripes.offset(lineVisits) + lineId, numvisits);
+        }
     }
 
 
     public static void registerLineVisitedArray(AtomicLongArray lineVisits, int[] methodVisited, int firstLine) {
+        int offset = CounterStripes.offset(lineVisits) + firstLine;
         for (int i = 0; i < methodVisited.length; i++) {
-            lineVisits.addAndGet(i + firstLine, methodVisited[i]);
+            if (methodVisited[i] != 0) {
+                lineVisits.addAndGet(offset + i, methodVisited[i]);
+                methodVisited[i] = 0;
+            }
         }
     }
 
     public static void registerLineTimeVisitedArray(AtomicLongArray lineVisits, AtomicLongArray timeVisits, int[] methodVisited, long[] methodTimes, int firstLine) {
+        int offset = CounterStripes.offset(lineVisits) + firstLine;
         for (int i = 0; i < methodVisited.length; i++) {
             int visits = methodVisited[i];
-            final int classLine = i + firstLine;
-            lineVisits.addAndGet(classLine, visits);
             if (visits > 0) {
-                timeVisits.set(classLine, methodTimes[i]);
+                lineVisits.addAndGet(offset + i, visits);
+                timeVisits.set(offset + i, methodTimes[i]);
+                methodVisited[i] = 0;
             }
         }
     }
 
-    public static void linesTouched(int classId) {
-        classTouches.set(classId, 1);
+    /**
+     * Registers the visits of a large method, stamping every visited line with the same time
+     */
+    public static void registerLineTimeVisitedArray(AtomicLongArray lineVisits, AtomicLongArray timeVisits, int[] methodVisited, long time, int firstLine) {
+        int offset = CounterStripes.offset(lineVisits) + firstLine;
+        for (int i = 0; i < methodVisited.length; i++) {
+            int visits = methodVisited[i];
+            if (visits > 0) {
+                lineVisits.addAndGet(offset + i, visits);
+                timeVisits.set(offset + i, time);
+                methodVisited[i] = 0;
+            }
+        }
     }
 
-    public static boolean isClassRegistered(String name, ClassLoader classLoader) {
-        synchronized (monitor) {
-            ClassNameMap classNameMap = classNamesMap.get(System.identityHashCode(classLoader));
-            return classNameMap != null && classNameMap.containsKey(name);
+    /**
+     * Called by each instrumented class when it is initialized, so slots never collide across classes
+     * instrumented in different JVMs, like cached or offline instrumented classes.
+     *
+     * @return the first of count new slots for per thread scratch buffers
+     */
+    public static int newScratchSlots(int count) {
+        return scratchSlots.getAndAdd(count);
+    }
+
+    /**
+     * Gets the current thread's scratch buffer for counting the visits of a large method. Array registration
+     * clears the counts it registers, so a buffer is ready for the next invocation, also when the method recursed.
+     */
+    public static int[] scratchInts(int slot, int size) {
+        int[][] buffers = scratchInts.get();
+        if (slot >= buffers.length) {
+            int[][] old = buffers;
+            buffers = new int[Math.max(slot + 1, scratchSlots.get())][];
+            System.arraycopy(old, 0, buffers, 0, old.length);
+            scratchInts.set(buffers);
+        }
+        int[] buffer = buffers[slot];
+        if (buffer == null || buffer.length < size) {
+            buffers[slot] = buffer = new int[size];
         }
+        return buffer;
     }
 
-    public static int registerClass(String name, ClassLoader classLoader, String source) {
-        synchronized (monitor) {
-            ensureLineRegistryCapacity();
-            int classId = classCount;
-            classNames[classId] = name;
-            sourceFiles[classId] = source;
-            classLoaders[classId] = System.identityHashCode(classLoader);
-            classCount++;
-            if(!classNamesMap.containsKey(classLoaders[classId])) {
-                classNamesMap.putIfAbsent(classLoaders[classId], new ClassNameMap(classLoader));
-            }
-            classNamesMap.get(classLoaders[classId]).put(classNames[classId], classId);
-            return classId;
+    /**
+     * Gets the current thread's scratch buffer for the visit times of a large method
+     */
+    public static long[] scratchLongs(int slot, int size) {
+        long[][] buffers = scratchLongs.get();
+        if (slot >= buffers.length) {
+            long[][] old = buffers;
+            buffers = new long[Math.max(slot + 1, scratchSlots.get())][];
+            System.arraycopy(old, 0, buffers, 0, old.length);
+            scratchLongs.set(buffers);
         }
+        long[] buffer = buffers[slot];
+        if (buffer == null || buffer.length < size) {
+            buffers[slot] = buffer = new long[size];
+        }
+        return buffer;
     }
 
-    public static void registerLines(int classId, int[] lines) {
-        Registry.lineVisits[classId] = new AtomicLongArray(lines.length);
-        Registry.lineTimes[classId] = new AtomicLongArray(lines.length);
-        Registry.lines[classId] = new int[lines.length];
-        System.arraycopy(lines, 0, Registry.lines[classId], 0, lines.length);
+    /**
+     * Sets the number of counter stripes per class, threads in different stripes never contend for the same counter.
+     * Must be called before any classes are registered.
+     */
+    public static void setCounterStripes(int stripes) {
+        CounterStripes.setStripes(stripes);
     }
 
-    private static void ensureLineRegistryCapacity() {
-        if (classCount + 1 >= classNames.length) {
-            {
-                String[] old = classNames;
-                String[] classNames = new String[old.length * 2];
-                System.arraycopy(old, 0, classNames, 0, old.length);
-                Registry.classNames = classNames;
-            }
-            {
-                int[] old = classLoaders;
-                int[] classLoaders = new int[old.length * 2];
-                System.arraycopy(old, 0, classLoaders, 0, old.length);
-                Registry.classLoaders = classLoaders;
-            }
+    /**
+     * Decides whether the invocation of a sampled method should register its visits. Counts down per thread,
+     * so on average one in every sampleRate invocations on a thread is sampled. The countdown restarts at a random
+     * value between 1 and 2 * sampleRate - 1, a fixed period would keep sampling the same methods of a repeated call pattern.
+     */
+    public static boolean isSampled(int sampleRate) {
+        int[] countdown = sampleCountdown.get();
+        if (--countdown[0] > 0) {
+            return false;
+        }
+        int random = countdown[1];
+        random ^= random << 13;
+        random ^= random >>> 17;
+        random ^= random << 5;
+        countdown[1] = random;
+        countdown[0] = 1 + (random >>> 1) % (2 * sampleRate - 1);
+        return true;
+    }
 
-            {
-                String[][] old = methodNames;
-                String[][] methodNames = new String[old.length * 2][];
-                System.arraycopy(old, 0, methodNames, 0, old.length);
-                Registry.methodNames = methodNames;
-            }
+    public static void linesTouched(int classId) {
+        classTouches.touch(classId);
+    }
 
-            {
-                String[][] old = methodDescs;
-                String[][] methodDescs = new String[old.length * 2][];
-                System.arraycopy(old, 0, methodDescs, 0, old.length);
-                Registry.methodDescs = methodDescs;
+    /**
+     * Keeps the line counters of classes registered from now on in a memory mapped file. Counts are added when the
+     * change detector notices them and when the JVM exits, so a JVM that is killed loses at most the counts of its
+     * last {@link #CHECK_RESOLUTION_MILLIS}.
+     *
+     * @param file the counter file, or null to stop writing counters
+     * @param shared whether to add to the counts of other JVMs in an existing file, instead of replacing it
+     */
+    public static void mapCounters(File file, boolean shared) throws IOException {
+        synchronized (monitor) {
+            if (file == null) {
+                counterFile = null;
+            } else {
+                counterFile = shared ? CounterFile.attach(file, CounterFile.DEFAULT_CAPACITY) : CounterFile.create(file, CounterFile.DEFAULT_CAPACITY);
             }
-            {
-                String[] old = sourceFiles;
-                String[] sourceFiles = new String[old.length * 2];
-                System.arraycopy(old, 0, sourceFiles, 0, old.length);
-                Registry.sourceFiles = sourceFiles;
+            fileCounters = new ClassTable<CounterFile.Counters>();
+            if (counterFile != null && !counterShutdownHook) {
+                addCounterShutdownHook();
+                counterShutdownHook = true;
             }
-            {
-                AtomicLongArray[] old = lineVisits;
-                AtomicLongArray[] lineVisits = new AtomicLongArray[old.length * 2];
-                System.arraycopy(old, 0, lineVisits, 0, old.length);
-                Registry.lineVisits = lineVisits;
+        }
+    }
+
+    /**
+     * Writes the counts of every class to the counter file
+     */
+    static void writeCounters() {
+        CounterFile file = counterFile;
+        if (file != null) {
+            int classCount = Registry.classCount.get();
+            for (int c = 0; c < classCount; c++) {
+                writeCounters(c);
             }
-            {
-                AtomicLongArray[] old = lineTimes;
-                AtomicLongArray[] lineTimes = new AtomicLongArray[old.length * 2];
-                System.arraycopy(old, 0, lineTimes, 0, old.length);
-                Registry.lineTimes = lineTimes;
+            file.force();
+        }
+    }
+
+    /**
+     * Adds the visits counted since the counts of a class were last written to its counters in the file
+     */
+    private static void writeCounters(int classId) {
+        CounterFile file = counterFile;
+        CounterFile.Counters counters = fileCounters.get(classId);
+        AtomicLongArray visits = lineVisits.get(classId);
+        if (file == null || counters == null || visits == null) {
+            return;
+        }
+        AtomicLongArray times = lineTimes.get(classId);
+        Integer sampleRate = sampleRates.get(classId);
+        synchronized (counters) {
+            long[] sums = new long[counters.lines];
+            long[] added = new long[counters.lines];
+            long[] lastTimes = new long[counters.lines];
+            boolean changed = false;
+            for (int l = 0; l < counters.lines; l++) {
+                sums[l] = CounterStripes.sum(visits, l);
+                if (sums[l] != counters.written[l]) {
+                    added[l] = sums[l] - counters.written[l];
+                    if (sampleRate != null && sampleRate > 1) {
+                        added[l] *= sampleRate;
+                    }
+                    lastTimes[l] = CounterStripes.max(times, l);
+                    changed = true;
+                }
             }
-            {
-                int[][] old = lines;
-                int[][] lines = new int[old.length * 2][];
-                System.arraycopy(old, 0, lines, 0, old.length);
-                Registry.lines = lines;
+            if (!changed) {
+                return;
             }
-            {
-                BranchPoint[][] old = branchPoints;
-                BranchPoint[][] branchPoints = new BranchPoint[old.length * 2][];
-                System.arraycopy(old, 0, branchPoints, 0, old.length);
-                Registry.branchPoints = branchPoints;
+            try {
+                file.add(counters, added, lastTimes);
+            } catch (IOException e) {
+                // The counts are added on the next write
+                e.printStackTrace();
+                return;
             }
+            System.arraycopy(sums, 0, counters.written, 0, sums.length);
+        }
+    }
 
-            classTouches = new AtomicIntegerArray(classNames.length);
+    public static boolean isClassRegistered(String name, ClassLoader classLoader) {
+        ClassNameMap classNameMap = classNamesMap.get(System.identityHashCode(classLoader));
+        return classNameMap != null && classNameMap.containsKey(name);
+    }
+
+    /**
+     * Claims the next class id without locking, classes loaded by many threads register concurrently
+     */
+    public static int registerClass(String name, ClassLoader classLoader, String source) {
+        int classId = classCount.getAndIncrement();
+        if (classId >= ClassTable.MAX_CLASSES) {
+            classCount.decrementAndGet();
+            throw new IllegalStateException("Cannot register more than " + ClassTable.MAX_CLASSES + " classes");
+        }
+        int loader = System.identityHashCode(classLoader);
+        sourceFiles.set(classId, source);
+        classLoaders.set(classId, loader);
+        classNames.set(classId, name);
+        if(!classNamesMap.containsKey(loader)) {
+            classNamesMap.putIfAbsent(loader, new ClassNameMap(classLoader));
         }
+        classNamesMap.get(loader).put(name, classId);
+        return classId;
     }
 
-    public static CoverageData getCoverageData() {
-        synchronized (monitor) {
-            final String[] classNames = new String[classCount];
-            System.arraycopy(Registry.classNames, 0, classNames, 0, classNames.length);
+    public static void registerLines(int classId, int[] lines) {
+        registerLines(classId, lines, 0);
+    }
 
-            final int[] classLoaders = new int[classCount];
-            System.arraycopy(Registry.classLoaders, 0, classLoaders, 0, classLoaders.length);
+    /**
+     * @param classHash the {@link CounterFile#hash} of the class bytes, telling versions of a class apart in the
+     *                  counter file
+     */
+    public static void registerLines(int classId, int[] lines, long classHash) {
+        Registry.lineVisits.set(classId, CounterStripes.newCounters(lines.length));
+        Registry.lineTimes.set(classId, CounterStripes.newCounters(lines.length));
+        CounterFile file = counterFile;
+        if (file != null) {
+            try {
+                CounterFile.Counters counters = file.addClass(classNames.get(classId), classHash, lines);
+                if (counters != null) {
+                    fileCounters.set(classId, counters);
+                }
+            } catch (IOException e) {
+                // The class is counted without the counter file
+                e.printStackTrace();
+            }
+        }
+        Registry.lines.set(classId, lines.clone());
+    }
 
-            final String[][] methodNames = new String[classCount][];
-            System.arraycopy(Registry.methodNames, 0, methodNames, 0, methodNames.length);
+    /**
+     * Registers a class instrumented for hit-only coverage, which marks executed lines instead of counting visits.
+     */
+    public static void registerLineHits(int classId) {
+        Registry.lineHits.set(classId, new boolean[Registry.lines.get(classId).length]);
+    }
 
-            final String[][] methodDescs = new String[classCount][];
-            System.arraycopy(Registry.methodDescs, 0, methodDescs, 0, methodDescs.length);
+    /**
+     * Registers a class instrumented for method coverage, which stamps each method with the time it was last invoked.
+     *
+     * @param methodLines the class line indexes of each method, in the order of the registered method names
+     */
+    public static void registerMethodHits(int classId, int[][] methodLines) {
+        Registry.methodLines.set(classId, methodLines);
+        Registry.methodVisitTimes.set(classId, new long[methodLines.length]);
+    }
 
-            final String[] sourceFiles = new String[classCount];
-            System.arraycopy(Registry.sourceFiles, 0, sourceFiles, 0, sourceFiles.length);
+    /**
+     * Registers a class where only 1 in sampleRate method invocations register their visits.
+     */
+    public static void registerSampleRate(int classId, int sampleRate) {
+        Registry.sampleRates.set(classId, sampleRate);
+    }
 
-            final long[][] lineVisits = new long[classCount][];
-            final long[][] lineTimes = new long[classCount][];
-            for (int c = 0; c < classCount; c++) {
-                AtomicLongArray registryVisits = Registry.lineVisits[c];
-                int[] lines = Registry.lines[c];
+    /**
+     * @return the line numbers hit in a class instrumented for hit-only coverage
+     */
+    public static BitSet getHitLines(int classId) {
+        BitSet hitLines = new BitSet();
+        boolean[] hits = Registry.lineHits.get(classId);
+        int[] lines = Registry.lines.get(classId);
+        for (int l = 0; hits != null && l < hits.length; l++) {
+            if (hits[l]) {
+                hitLines.set(lines[l]);
+            }
+        }
+        return hitLines;
+    }
 
-                int maxLine = 0;
+    /**
+     * Registers the basic blocks of a class instrumented with one probe per block.
+     *
+     * @param blockLines the class line indexes executed by each block
+     */
+    public static void registerBlocks(int classId, int[][] blockLines) {
+        if (blockLines.length == 0) {
+            return;
+        }
+        Registry.blockVisits.set(classId, CounterStripes.newCounters(blockLines.length));
+        Registry.blockTimes.set(classId, CounterStripes.newCounters(blockLines.length));
+        Registry.blockLines.set(classId, blockLines);
+    }
 
-                for (int l = 0; l < lines.length; l++) {
-                    maxLine = Math.max(maxLine, lines[l]);
-                }
-                lineVisits[c] = new long[maxLine];
-                Arrays.fill(lineVisits[c], -1);
-                lineTimes[c] = new long[maxLine];
-                Arrays.fill(lineTimes[c], -1);
-
-                synchronized (Registry.lineVisits[c]) {
-                    for (int l = 0; l < registryVisits.length(); l++) {
-                        int lineNumber = lines[l];
-                        lineVisits[c][lineNumber - 1] = registryVisits.get(l);
-                    }
-                    final AtomicLongArray registryTimes = Registry.lineTimes[c];
-                    for (int l = 0; l < registryTimes.length(); l++) {
-                        int lineNumber = lines[l];
-                        lineTimes[c][lineNumber - 1] = registryTimes.get(l);
-                    }
-                }
+    /**
+     * Registers the basic blocks of a class instrumented with probes on control flow edges.
+     *
+     * @param blockLines the class line indexes executed by each block
+     * @param flowGraphs how the visits of each block are derived from the edge counters
+     */
+    public static void registerFlowGraphs(int classId, int[][] blockLines, List<FlowGraph> flowGraphs, int numCounters) {
+        if (flowGraphs.isEmpty()) {
+            return;
+        }
+        Registry.edgeVisits.set(classId, CounterStripes.newCounters(numCounters));
+        Registry.edgeTimes.set(classId, CounterStripes.newCounters(numCounters));
+        Registry.blockLines.set(classId, blockLines);
+        Registry.flowGraphs.set(classId, flowGraphs.toArray(new FlowGraph[flowGraphs.size()]));
+    }
 
-            }
+    public static CoverageData getCoverageData() {
+        return getCoverageData(null, null);
+    }
 
-            final BranchPoint[][] branchPoints = new BranchPoint[classCount][];
+    /**
+     * Takes a snapshot of the coverage, copying only the classes changed since a previous snapshot. Unchanged classes
+     * keep the arrays of the previous snapshot, and the arrays of changed classes are refilled in place, so the previous
+     * snapshot must no longer be read. Counters are read without locking, visits registered while the snapshot is
+     * taken may or may not be included.
+     *
+     * @param previous a snapshot returned by this method, or null for a full snapshot
+     * @param changed the classes changed since the previous snapshot, as given to change listeners, or null for all
+     */
+    public static CoverageData getCoverageData(CoverageData previous, BitSet changed) {
+        ClassTable<String> registry = Registry.classNames;
+        int classCount = Registry.classCount.get();
+        CoverageSnapshot reused = null;
+        if (previous instanceof CoverageSnapshot && ((CoverageSnapshot) previous).registry == registry
+                && ((CoverageSnapshot) previous).classCount <= classCount) {
+            reused = (CoverageSnapshot) previous;
+        }
+        CoverageSnapshot snapshot = new CoverageSnapshot(registry, classCount, reused);
+        for (int c = 0; c < classCount; c++) {
+            if (reused == null || changed == null || c >= reused.classCount || !reused.complete[c] || changed.get(c)) {
+                snapshotClass(c, snapshot);
+            }
+        }
+        return snapshot;
+    }
 
-            System.arraycopy(Registry.branchPoints, 0, branchPoints, 0, branchPoints.length);
+    private static void snapshotClass(int c, CoverageSnapshot snapshot) {
+        Integer classLoader = Registry.classLoaders.get(c);
+        snapshot.classNames[c] = Registry.classNames.get(c);
+        snapshot.classLoaders[c] = classLoader == null ? 0 : classLoader;
+        snapshot.methodNames[c] = Registry.methodNames.get(c);
+        snapshot.methodDescs[c] = Registry.methodDescs.get(c);
+        snapshot.sourceFiles[c] = Registry.sourceFiles.get(c);
+
+        int[] lines = Registry.lines.get(c);
+        // Methods are registered last
+        snapshot.complete[c] = lines != null && snapshot.methodNames[c] != null;
+        if (lines == null) {
+            // Claimed by a class still registering
+            snapshot.lineVisits[c] = new long[0];
+            snapshot.lineTimes[c] = new long[0];
+            return;
+        }
 
-            return new CoverageData() {
-                public long[] getLinesVisited(int classId) {
-                    return lineVisits[classId];
-                }
+        int maxLine = 0;
 
-                public long[] getLinesVisitTimes(int classId) {
-                    return lineTimes[classId];
-                }
+        for (int l = 0; l < lines.length; l++) {
+            maxLine = Math.max(maxLine, lines[l]);
+        }
+        long[] lineVisits = snapshot.lineVisits[c] = CoverageSnapshot.reuse(snapshot.lineVisits[c], maxLine);
+        Arrays.fill(lineVisits, -1);
+        long[] lineTimes = snapshot.lineTimes[c] = CoverageSnapshot.reuse(snapshot.lineTimes[c], maxLine);
+        Arrays.fill(lineTimes, -1);
+
+        AtomicLongArray registryVisits = Registry.lineVisits.get(c);
+        AtomicLongArray registryTimes = Registry.lineTimes.get(c);
+        for (int l = 0; l < lines.length; l++) {
+            int lineNumber = lines[l];
+            lineVisits[lineNumber - 1] = CounterStripes.sum(registryVisits, l);
+            lineTimes[lineNumber - 1] = CounterStripes.max(registryTimes, l);
+        }
 
-                public String[] getClassNames() {
-                    return classNames;
-                }
+        boolean[] hits = Registry.lineHits.get(c);
+        for (int l = 0; hits != null && l < hits.length; l++) {
+            if (hits[l]) {
+                lineVisits[lines[l] - 1] = Math.max(lineVisits[lines[l] - 1], 1);
+            }
+        }
 
-                @Override
-                public int[] getClassLoaders() {
-                    return classLoaders;
-                }
+        long[] methodTimes = Registry.methodVisitTimes.get(c);
+        if (methodTimes != null) {
+            long[] times = snapshot.methodVisitTimes[c] = CoverageSnapshot.reuse(snapshot.methodVisitTimes[c], methodTimes.length);
+            System.arraycopy(methodTimes, 0, times, 0, times.length);
+            addMethodVisits(lines, Registry.methodLines.get(c), times, lineVisits, lineTimes);
+        }
 
-                @Override
-                public ClassLoader getClassLoader(int i) {
-                    return Registry.getClassLoader(i);
-                }
+        FlowGraph[] graphs = Registry.flowGraphs.get(c);
+        int[][] blocks = Registry.blockLines.get(c);
+        if (graphs != null) {
+            long[] blockVisits = new long[blocks.length];
+            long[] blockTimes = new long[blocks.length];
+            long[] edgeVisits = CounterStripes.sum(Registry.edgeVisits.get(c));
+            long[] edgeTimes = CounterStripes.max(Registry.edgeTimes.get(c));
+            for (FlowGraph graph : graphs) {
+                graph.addBlockVisits(edgeVisits, edgeTimes, blockVisits, blockTimes);
+            }
+            addBlockVisits(lines, blocks, blockVisits, blockTimes, lineVisits, lineTimes);
+        } else if (blocks != null) {
+            addBlockVisits(lines, blocks, CounterStripes.sum(Registry.blockVisits.get(c)), CounterStripes.max(Registry.blockTimes.get(c)), lineVisits, lineTimes);
+        }
 
-                public String[] getSourceFiles() {
-                    return sourceFiles;
-                }
+        Integer rate = Registry.sampleRates.get(c);
+        int sampleRate = rate == null ? 0 : rate;
+        for (int l = 0; sampleRate > 1 && l < lineVisits.length; l++) {
+            if (lineVisits[l] > 0) {
+                lineVisits[l] *= sampleRate;
+            }
+        }
 
-                public String[][] getMethodNames() {
-                    return methodNames;
+        BranchPoint[] classBranchPoints = Registry.branchPoints.get(c);
+        if (classBranchPoints != null) {
+            long[] branchVisits = CounterStripes.sum(Registry.branchVisits.get(c));
+            if (graphs != null) {
+                long[] edgeVisits = CounterStripes.sum(Registry.edgeVisits.get(c));
+                for (FlowGraph graph : graphs) {
+                    graph.addBranchVisits(edgeVisits, branchVisits);
                 }
+            }
+            snapshot.branchPoints[c] = withVisits(classBranchPoints, branchVisits, Math.max(sampleRate, 1));
+        }
+    }
 
-                public String[][] getMethodDescriptions() {
-                    return methodDescs;
+    /**
+     * Derives line visits from block visits. Every line executed by a block is visited once each time the block is entered.
+     */
+    private static void addBlockVisits(int[] lines, int[][] blocks, long[] blockVisits, long[] blockTimes, long[] lineVisits, long[] lineTimes) {
+        for (int b = 0; b < blocks.length; b++) {
+            long visits = blockVisits[b];
+            if (visits != 0) {
+                long time = blockTimes[b];
+                for (int l : blocks[b]) {
+                    int lineNumber = lines[l];
+                    lineVisits[lineNumber - 1] += visits;
+                    lineTimes[lineNumber - 1] = Math.max(lineTimes[lineNumber - 1], time);
                 }
+            }
+        }
+    }
 
-                public BranchPoint[] getBranchPoints(int classId) {
-                    return branchPoints[classId];
+    /**
+     * Derives line visits from method visits. Every line of an invoked method is reported as visited once, at the
+     * time the method was last invoked.
+     */
+    private static void addMethodVisits(int[] lines, int[][] methodLines, long[] methodTimes, long[] lineVisits, long[] lineTimes) {
+        for (int m = 0; m < methodTimes.length; m++) {
+            long time = methodTimes[m];
+            if (time != 0) {
+                for (int l : methodLines[m]) {
+                    int lineNumber = lines[l];
+                    lineVisits[lineNumber - 1] = Math.max(lineVisits[lineNumber - 1], 1);
+                    lineTimes[lineNumber - 1] = Math.max(lineTimes[lineNumber - 1], time);
                 }
+            }
+        }
+    }
 
-                public BranchPoint[] getBranchPointsForLine(int classId, int lineNumber) {
-                    List<BranchPoint> points = new ArrayList<BranchPoint>();
-                    for (BranchPoint b : branchPoints[classId]) {
-                        if (b.getLinenumber() == lineNumber) {
-                            points.add(b);
-                        }
-                    }
-                    return points.toArray(new BranchPoint[points.size()]);
-                }
-            };
+    /**
+     * @return copies of the registered branch points carrying their visits, scaled by the sample rate
+     */
+    private static BranchPoint[] withVisits(BranchPoint[] branchPoints, long[] branchVisits, int scale) {
+        BranchPoint[] copies = new BranchPoint[branchPoints.length];
+        for (int b = 0; b < branchPoints.length; b++) {
+            copies[b] = new BranchPoint(branchPoints[b].getInstruction(), branchPoints[b].getLinenumber(),
+                    branchVisits[2 * b] * scale, branchVisits[2 * b + 1] * scale);
         }
+        return copies;
     }
 
     public static void registerMethods(int classId, List<String> methodNames, List<String> methodDescs) {
-        Registry.methodNames[classId] = new String[methodNames.size()];
-        Registry.methodDescs[classId] = new String[methodNames.size()];
-        for (int i = 0; i < methodNames.size(); i++) {
-            Registry.methodNames[classId][i] = methodNames.get(i);
-            Registry.methodDescs[classId][i] = methodDescs.get(i);
-        }
+        Registry.methodNames.set(classId, methodNames.toArray(new String[methodNames.size()]));
+        Registry.methodDescs.set(classId, methodDescs.toArray(new String[methodDescs.size()]));
     }
 
     public static void registerBranchPoints(int classId, List<BranchPoint> branchPoints) {
-        Registry.branchPoints[classId] = branchPoints.toArray(new BranchPoint[branchPoints.size()]);
+        Registry.branchVisits.set(classId, CounterStripes.newCounters(2 * branchPoints.size()));
+        Registry.branchPoints.set(classId, branchPoints.toArray(new BranchPoint[branchPoints.size()]));
     }
 
-    public static void registerBranchPointVisits(int classId, int index, int numBefore, int numAfter) {
-        final BranchPoint branchPoint = branchPoints[classId][index];
-        branchPoint.before(numBefore);
-        branchPoint.after(numAfter);
+    public static void registerBranchVisits(AtomicLongArray branchVisits, int index, int numBefore, int numAfter) {
+        if (numBefore != 0) {
+            int offset = CounterStripes.offset(branchVisits) + 2 * index;
+            branchVisits.addAndGet(offset, numBefore);
+            if (numAfter != 0) {
+                branchVisits.addAndGet(offset + 1, numAfter);
+            }
+        }
     }
 
-    public static void registerBranchPointVisitsArray(int classId, int[] beforeVisits, int[] afterVisits, int firstIndex) {
-
+    public static void registerBranchVisitsArray(AtomicLongArray branchVisits, int[] beforeVisits, int[] afterVisits, int firstIndex) {
+        int offset = CounterStripes.offset(branchVisits) + 2 * firstIndex;
         for (int i = 0; i < beforeVisits.length; i++) {
-            final BranchPoint branchPoint = branchPoints[classId][firstIndex + i];
-            branchPoint.before(beforeVisits[i]);
-            branchPoint.after(afterVisits[i]);
+            if (beforeVisits[i] != 0) {
+                branchVisits.addAndGet(offset + 2 * i, beforeVisits[i]);
+                if (afterVisits[i] != 0) {
+                    branchVisits.addAndGet(offset + 2 * i + 1, afterVisits[i]);
+                }
+                beforeVisits[i] = 0;
+                afterVisits[i] = 0;
+            }
         }
     }
 
+    /**
+     * @return the id of the class if registered, or else the id it will likely get. A class registered in between
+     * takes that id, and the class gets the next free one when it registers.
+     */
     public static int newClassId(String className, ClassLoader classLoader) {
-        synchronized (monitor) {
-            ClassNameMap classNameMap = classNamesMap.get(System.identityHashCode(classLoader));
-
-            if (classNameMap != null && classNameMap.containsKey(className)) {
-                return classNameMap.get(className);
-            } else {
-                return classCount;
-            }
-        }
+        ClassNameMap classNameMap = classNamesMap.get(System.identityHashCode(classLoader));
+        Integer classId = classNameMap == null ? null : classNameMap.get(className);
+        return classId != null ? classId : classCount.get();
     }
 
     public static void resetRegistry() {
         synchronized (monitor) {
-            classCount = 0;
-            classNames = new String[INITIAL_NUM_CLASSES];
-            classLoaders = new int[INITIAL_NUM_CLASSES];
-            classTouches = new AtomicIntegerArray(INITIAL_NUM_CLASSES);
-            classNamesMap = new ConcurrentHashMap<Integer, ClassNameMap>(INITIAL_NUM_CLASSES);
-            methodNames = new String[INITIAL_NUM_CLASSES][];
-            methodDescs = new String[INITIAL_NUM_CLASSES][];
-            sourceFiles = new String[INITIAL_NUM_CLASSES];
-            lines = new int[INITIAL_NUM_CLASSES][];
-            lineVisits = new AtomicLongArray[INITIAL_NUM_CLASSES];
-            lineTimes = new AtomicLongArray[INITIAL_NUM_CLASSES];
-            branchPoints = new BranchPoint[INITIAL_NUM_CLASSES][];
+            classCount = new AtomicInteger();
+            classNames = new ClassTable<String>();
+            classLoaders = new ClassTable<Integer>();
+            classTouches = new TouchedClasses();
+            fileCounters = new ClassTable<CounterFile.Counters>();
+            classNamesMap = new ConcurrentHashMap<Integer, ClassNameMap>();
+            methodNames = new ClassTable<String[]>();
+            methodDescs = new ClassTable<String[]>();
+            sourceFiles = new ClassTable<String>();
+            lines = new ClassTable<int[]>();
+            lineVisits = new ClassTable<AtomicLongArray>();
+            lineTimes = new ClassTable<AtomicLongArray>();
+            lineHits = new ClassTable<boolean[]>();
+            methodVisitTimes = new ClassTable<long[]>();
+            methodLines = new ClassTable<int[][]>();
+            branchPoints = new ClassTable<BranchPoint[]>();
+            branchVisits = new ClassTable<AtomicLongArray>();
+            blockVisits = new ClassTable<AtomicLongArray>();
+            blockTimes = new ClassTable<AtomicLongArray>();
+            blockLines = new ClassTable<int[][]>();
+            edgeVisits = new ClassTable<AtomicLongArray>();
+            edgeTimes = new ClassTable<AtomicLongArray>();
+            flowGraphs = new ClassTable<FlowGraph[]>();
+            sampleRates = new ClassTable<Integer>();
 
         }
 
@@ -573,17 +1001,35 @@ public abstract class Registry {
 
     public static void resetVisits() {
         synchronized (monitor) {
+            int classCount = Registry.classCount.get();
             for (int i = 0; i < classCount; i++) {
-                AtomicLongArray lvs = lineVisits[i];
-                for (int l = 0; l < lvs.length(); l++) {
+                // Snapshots taken from earlier ones copy the class again
+                classTouches.touch(i);
+                AtomicLongArray lvs = lineVisits.get(i);
+                for (int l = 0; lvs != null && l < lvs.length(); l++) {
                     if (lvs.get(l) >= 0) {
                         lvs.set(l,  0);
                     }
                 }
-                BranchPoint[] bps = branchPoints[i];
-                for (int b = 0; bps != null && b < bps.length; b++) {
-                    bps[b].reset();
-
+                boolean[] hits = lineHits.get(i);
+                if (hits != null) {
+                    Arrays.fill(hits, false);
+                }
+                long[] methodTimes = methodVisitTimes.get(i);
+                if (methodTimes != null) {
+                    Arrays.fill(methodTimes, 0);
+                }
+                AtomicLongArray brvs = branchVisits.get(i);
+                for (int b = 0; brvs != null && b < brvs.length(); b++) {
+                    brvs.set(b, 0);
+                }
+                AtomicLongArray bvs = blockVisits.get(i);
+                for (int b = 0; bvs != null && b < bvs.length(); b++) {
+                    bvs.set(b, 0);
+                }
+                AtomicLongArray evs = edgeVisits.get(i);
+                for (int e = 0; evs != null && e < evs.length(); e++) {
+                    evs.set(e, 0);
                 }
             }
         }
@@ -636,9 +1082,18 @@ public abstract class Registry {
         final String[] sourceFiles;
         final int[][] lines;
         final AtomicLongArray[] lineVisits;
+        final boolean[][] lineHits;
+        final long[][] methodVisitTimes;
+        final int[][][] methodLines;
         final BranchPoint[][] branchPoints;
+        final AtomicLongArray[] branchVisits;
+        final int[][][] blockLines;
+        final AtomicLongArray[] blockVisits;
+        final FlowGraph[][] flowGraphs;
+        final AtomicLongArray[] edgeVisits;
+        final int[] sampleRates;
 
-        public Save(int classCount, String[] classNames, int[] classLoaders, String[][] methodNames, String[][] methodDescs, String[] sourceFiles, int[][] lines, AtomicLongArray[] lineVisits, BranchPoint[][] branchPoints) {
+        public Save(int classCount, String[] classNames, int[] classLoaders, String[][] methodNames, String[][] methodDescs, String[] sourceFiles, int[][] lines, AtomicLongArray[] lineVisits, boolean[][] lineHits, long[][] methodVisitTimes, int[][][] methodLines, BranchPoint[][] branchPoints, AtomicLongArray[] branchVisits, int[][][] blockLines, AtomicLongArray[] blockVisits, FlowGraph[][] flowGraphs, AtomicLongArray[] edgeVisits, int[] sampleRates) {
 
             this.classCount = classCount;
             this.classNames = classNames;
@@ -648,7 +1103,16 @@ public abstract class Registry {
             this.sourceFiles = sourceFiles;
             this.lines = lines;
             this.lineVisits = lineVisits;
+            this.lineHits = lineHits;
+            this.methodVisitTimes = methodVisitTimes;
+            this.methodLines = methodLines;
             this.branchPoints = branchPoints;
+            this.branchVisits = branchVisits;
+            this.blockLines = blockLines;
+            this.blockVisits = blockVisits;
+            this.flowGraphs = flowGraphs;
+            this.edgeVisits = edgeVisits;
+            this.sampleRates = sampleRates;
         }
     }
 
@@ -669,8 +1133,8 @@ public abstract class Registry {
         int classId = frame.getClassId();
         int methodIdx = frame.getMethodIndex();
 
-        String className = classNames[classId];
-        String methodName = methodNames[classId][methodIdx];
+        String className = classNames.get(classId);
+        String methodName = methodNames.get(classId)[methodIdx];
 
         FrameData data = frame.getData();
         long selfTime = data.getTime();
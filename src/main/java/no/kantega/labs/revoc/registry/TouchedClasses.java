@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.registry;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The classes whose counters changed since the change detector last looked, as a two level bitmap.
+ *
+ * The lower level has a bit per class, in words kept in segments like the class table. The upper level has a bit per
+ * lower level word, set when the word gets a bit. Touching a class that is already marked is only a read of its word,
+ * so classes invoked all the time do not keep writing to cache lines shared between cores. The change detector
+ * reads the upper level and then only the words it marks.
+ */
+class TouchedClasses {
+
+    private static final int WORDS_PER_SEGMENT = ClassTable.SEGMENT_SIZE / 64;
+
+    private final AtomicReferenceArray<AtomicLongArray> segments = new AtomicReferenceArray<AtomicLongArray>(ClassTable.MAX_SEGMENTS);
+    /** A bit for each word of the lower level, numbered across segments **/
+    private final AtomicLongArray summary = new AtomicLongArray(ClassTable.MAX_CLASSES / 64 / 64);
+
+    void touch(int classId) {
+        AtomicLongArray words = segment(classId);
+        int word = (classId & (ClassTable.SEGMENT_SIZE - 1)) >>> 6;
+        long bit = 1L << classId;
+        if ((words.get(word) & bit) == 0) {
+            setBit(words, word, bit);
+            int wordIndex = classId >>> 6;
+            long wordBit = 1L << wordIndex;
+            if ((summary.get(wordIndex >>> 6) & wordBit) == 0) {
+                setBit(summary, wordIndex >>> 6, wordBit);
+            }
+        }
+    }
+
+    /**
+     * Sets the bits of the touched classes and clears their marks. A class touched while draining is either
+     * included now or on the next drain.
+     */
+    void drainTo(BitSet touched) {
+        for (int s = 0; s < summary.length(); s++) {
+            long marked = summary.get(s);
+            if (marked == 0) {
+                continue;
+            }
+            // Cleared before the words, so a word marked again after being read is marked for the next drain
+            clearBits(summary, s, marked);
+            while (marked != 0) {
+                int wordIndex = (s << 6) + Long.numberOfTrailingZeros(marked);
+                marked &= marked - 1;
+                AtomicLongArray words = segments.get(wordIndex / WORDS_PER_SEGMENT);
+                long bits = words.getAndSet(wordIndex % WORDS_PER_SEGMENT, 0);
+                while (bits != 0) {
+                    touched.set((wordIndex << 6) + Long.numberOfTrailingZeros(bits));
+                    bits &= bits - 1;
+                }
+            }
+        }
+    }
+
+    private static void setBit(AtomicLongArray array, int index, long bit) {
+        long value;
+        do {
+            value = array.get(index);
+        } while ((value & bit) == 0 && !array.compareAndSet(index, value, value | bit));
+    }
+
+    private static void clearBits(AtomicLongArray array, int index, long bits) {
+        long value;
+        do {
+            value = array.get(index);
+        } while (!array.compareAndSet(index, value, value & ~bits));
+    }
+
+    private AtomicLongArray segment(int classId) {
+        int index = classId >>> ClassTable.SEGMENT_BITS;
+        AtomicLongArray segment = segments.get(index);
+        if (segment == null) {
+            segments.compareAndSet(index, null, new AtomicLongArray(WORDS_PER_SEGMENT));
+            segment = segments.get(index);
+        }
+        return segment;
+    }
+}
@@ -113,6 +113,10 @@ public class CoverageFolder {
                 return lineTimes[classId];
             }
 
+            public long[] getMethodVisitTimes(int classId) {
+                throw new IllegalStateException("Folding not implemented for method visit times");
+            }
+
             public String[] getClassNames() {
                 return classNames;
             }
@@ -159,6 +163,7 @@ public class CoverageFolder {
 
         final long[][] linesVisited = new long[forClasses.cardinality()][];
         final long[][] linesVisitedTime = new long[forClasses.cardinality()][];
+        final long[][] methodVisitTimes = new long[forClasses.cardinality()][];
         final String[][] methodNames = new String[forClasses.cardinality()][];
         final String[][] methodDescr = new String[forClasses.cardinality()][];
         final String[] sourceFiles = new String[forClasses.cardinality()];
@@ -169,6 +174,7 @@ public class CoverageFolder {
         for (int i = forClasses.nextSetBit(0); i >= 0; i = forClasses.nextSetBit(i+1)) {
             linesVisited[c] = coverageData.getLinesVisited(i);
             linesVisitedTime[c] = coverageData.getLinesVisitTimes(i);
+            methodVisitTimes[c] = coverageData.getMethodVisitTimes(i);
             methodNames[c] = coverageData.getMethodNames()[i];
             methodDescr[c] = coverageData.getMethodDescriptions()[i];
             sourceFiles[c] = coverageData.getSourceFiles()[i];
@@ -188,6 +194,11 @@ public class CoverageFolder {
                 return linesVisitedTime[classId];
             }
 
+            @Override
+            public long[] getMethodVisitTimes(int classId) {
+                return methodVisitTimes[classId];
+            }
+
             @Override
             public String[] getClassNames() {
                 return classNames;
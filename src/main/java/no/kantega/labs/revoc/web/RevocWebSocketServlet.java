@@ -16,6 +16,7 @@
 
 package no.kantega.labs.revoc.web;
 
+import no.kantega.labs.revoc.registry.CoverageData;
 import no.kantega.labs.revoc.registry.Registry;
 import org.eclipse.jetty.websocket.WebSocket;
 import org.eclipse.jetty.websocket.WebSocketServlet;
@@ -37,6 +38,9 @@ public class RevocWebSocketServlet extends WebSocketServlet implements Registry.
 
     private final Set<TimeWebSocket> members = new CopyOnWriteArraySet<TimeWebSocket>();
 
+    /** Last snapshot of the change notifications, only used by the change detector thread **/
+    private CoverageData snapshot;
+
     @Override
     public void init() throws ServletException {
         super.init();
@@ -51,12 +55,13 @@ public class RevocWebSocketServlet extends WebSocketServlet implements Registry.
 
     @Override
     public void onChange(BitSet bs) {
-        sendMessages(members, bs);
+        snapshot = Registry.getCoverageData(snapshot, bs);
+        sendMessages(members, snapshot, bs);
     }
 
-    private void sendMessages(Set<TimeWebSocket> members, BitSet changed) {
+    private void sendMessages(Set<TimeWebSocket> members, CoverageData coverageData, BitSet changed) {
         StringWriter sw = new StringWriter();
-        new JsonHandler().writeJson(Registry.getCoverageData(), new PrintWriter(sw), changed);
+        new JsonHandler().writeJson(coverageData, new PrintWriter(sw), changed);
         String msg = sw.toString();
 
         for(TimeWebSocket ws : members) {
@@ -87,7 +92,7 @@ public class RevocWebSocketServlet extends WebSocketServlet implements Registry.
         public void onOpen(Connection connection) {
             this.connection = connection;
             members.add(this);
-            sendMessages(Collections.singleton(this), null);
+            sendMessages(Collections.singleton(this), Registry.getCoverageData(), null);
         }
 
         @Override
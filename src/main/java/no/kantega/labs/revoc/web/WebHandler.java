@@ -16,6 +16,7 @@
 
 package no.kantega.labs.revoc.web;
 
+import no.kantega.labs.revoc.agent.ClassFilter;
 import no.kantega.labs.revoc.registry.Registry;
 import no.kantega.labs.revoc.report.HtmlReport;
 import no.kantega.labs.revoc.source.SourceSource;
@@ -34,12 +35,12 @@ import java.io.*;
  */
 public class WebHandler extends AbstractHandler {
     private final SourceSource sourceSource;
-    private final String[] packages;
+    private final ClassFilter filter;
     private File resources;
 
-    public WebHandler(SourceSource sourceSource, String[] packages) {
+    public WebHandler(SourceSource sourceSource, ClassFilter filter) {
         this.sourceSource = sourceSource;
-        this.packages = packages;
+        this.filter = filter;
         String src = System.getProperty("revoc.dev");
         if(src != null) {
             File srcFile = new File(src);
@@ -70,7 +71,7 @@ public class WebHandler extends AbstractHandler {
                 }
             }else if (request.getRequestURI() != null && request.getRequestURI().startsWith("/sources/")) {
                 String className = request.getRequestURI().substring("/sources/".length());
-                if(!isPackageMatch(className)) {
+                if(!filter.matches(className)) {
                     response.sendError(HttpServletResponse.SC_NOT_FOUND);
                     return;
                 }
@@ -121,15 +122,6 @@ public class WebHandler extends AbstractHandler {
 
     }
 
-    private boolean isPackageMatch(String className) {
-        for (String p : packages) {
-            if(className.startsWith(p)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     private InputStream getResourceStream(String resourcePath) {
         if(resources != null) {
             File source = new File(resources, resourcePath);
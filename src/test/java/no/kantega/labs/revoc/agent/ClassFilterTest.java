@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.agent;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class ClassFilterTest {
+
+    @Test
+    public void prefixesShouldMatchPackagesAndSubPackages() {
+        ClassFilter filter = new ClassFilter(new String[]{"com.example.", "org/example/app/"}, null);
+
+        assertTrue(filter.matches("com/example/Foo"));
+        assertTrue(filter.matches("com/example/sub/Bar"));
+        assertTrue(filter.matches("org/example/app/Main"));
+        assertFalse(filter.matches("com/examples/Foo"));
+        assertFalse(filter.matches("org/example/Main"));
+        assertFalse(filter.matches("com/example"));
+    }
+
+    @Test
+    public void excludesShouldWinOverIncludes() {
+        ClassFilter filter = new ClassFilter(new String[]{"com.example.", "*Service"},
+                new String[]{"*Test", "*$$*", "com.example.jsp.*_jsp", "com.example.generated."});
+
+        assertTrue(filter.matches("com/example/Foo"));
+        assertTrue(filter.matches("org/other/MailService"));
+        assertTrue(filter.matches("com/example/jsp/Helper"));
+        assertFalse(filter.matches("com/example/FooTest"));
+        assertFalse(filter.matches("com/example/Foo$$EnhancerByCGLIB$$1234"));
+        assertFalse(filter.matches("com/example/jsp/index_jsp"));
+        assertFalse(filter.matches("com/example/generated/Foo"));
+        assertFalse(filter.matches("org/other/Mail"));
+    }
+
+    @Test
+    public void globsShouldMatchWholeNames() {
+        ClassFilter filter = new ClassFilter(new String[]{"com.*.internal.*Impl", "*"}, new String[]{"*a*b*"});
+
+        assertFalse(filter.matches("xaxbx"));
+        assertFalse(filter.matches("ab"));
+        assertTrue(filter.matches("ba"));
+
+        filter = new ClassFilter(new String[]{"com.*.internal.*Impl"}, null);
+        assertTrue(filter.matches("com/example/internal/FooImpl"));
+        assertFalse(filter.matches("com/example/internal/FooImpl$1"));
+        assertFalse(filter.matches("com/example/FooImpl"));
+    }
+
+    @Test
+    public void jdkAndRevocClassesShouldNeverMatch() {
+        ClassFilter filter = new ClassFilter(new String[]{""}, null);
+
+        assertTrue(filter.matches("com/example/Foo"));
+        assertFalse(filter.matches("java/lang/String"));
+        assertFalse(filter.matches("sun/misc/Unsafe"));
+        assertFalse(filter.matches("no/kantega/labs/revoc/registry/Registry"));
+        assertFalse(new ClassFilter(null, null).matches("com/example/Foo"));
+    }
+}
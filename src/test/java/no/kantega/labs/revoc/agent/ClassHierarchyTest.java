@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.agent;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class ClassHierarchyTest {
+
+    private final ClassHierarchy hierarchy = new ClassHierarchy();
+
+    @Test
+    public void commonSuperClassShouldBeResolvedFromClassFiles() {
+        ClassLoader classLoader = getClass().getClassLoader();
+
+        assertEquals("java/util/AbstractList", hierarchy.getCommonSuperClass("java/util/ArrayList", "java/util/LinkedList", classLoader));
+        assertEquals("java/lang/Number", hierarchy.getCommonSuperClass("java/lang/Integer", "java/lang/Long", classLoader));
+        assertEquals("java/util/List", hierarchy.getCommonSuperClass("java/util/List", "java/util/ArrayList", classLoader));
+        assertEquals("java/lang/Object", hierarchy.getCommonSuperClass("java/util/List", "java/lang/Integer", classLoader));
+        assertEquals("java/lang/Object", hierarchy.getCommonSuperClass("com/example/Missing", "java/lang/Integer", classLoader));
+    }
+
+    @Test
+    public void resolvingShouldNotLoadClasses() {
+        final ClassLoader resources = getClass().getClassLoader();
+        ClassLoader classLoader = new ClassLoader(null) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                throw new AssertionError("Loaded " + name);
+            }
+
+            @Override
+            public InputStream getResourceAsStream(String name) {
+                return resources.getResourceAsStream(name);
+            }
+        };
+
+        assertEquals("java/lang/Object", hierarchy.getCommonSuperClass("no/kantega/labs/helloworld/HelloWorld", "no/kantega/labs/helloworld/ClassWithLogic", classLoader));
+        assertTrue(hierarchy.isAssignableFrom("java/util/RandomAccess", "java/util/ArrayList", classLoader));
+    }
+}
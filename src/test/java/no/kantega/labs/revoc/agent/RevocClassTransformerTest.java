@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.agent;
+
+import no.kantega.labs.revoc.registry.Registry;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Properties;
+
+import static no.kantega.labs.revoc.demo.ClassUtils.invokeMainMethodUsingReflection;
+import static org.junit.Assert.*;
+
+/**
+ */
+public class RevocClassTransformerTest {
+
+    private static final String HELLO_WORLD = "no/kantega/labs/helloworld/HelloWorld";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setup() {
+        Registry.resetRegistry();
+    }
+
+    @Test
+    public void cachedClassesShouldRegisterVisitsUnderTheirNewClassId() throws Exception {
+        ClassLoader classLoader = getClass().getClassLoader();
+        byte[] original = IOUtils.toByteArray(classLoader.getResourceAsStream(HELLO_WORLD + ".class"));
+        Properties options = new Properties();
+        options.setProperty("cache", folder.getRoot().getPath());
+
+        newTransformer(options).transform(classLoader, HELLO_WORLD, null, null, original);
+        File entry = folder.getRoot().listFiles()[0];
+        assertTrue(entry.setLastModified(1000));
+
+        // A restarted VM where another class got the first class id
+        Registry.resetRegistry();
+        int otherId = Registry.registerClass("other", classLoader, "other");
+        Registry.registerLines(otherId, new int[]{1});
+        byte[] cached = newTransformer(options).transform(classLoader, HELLO_WORLD, null, null, original);
+
+        // Read from the cache, not instrumented and written again
+        assertEquals(1000, entry.lastModified());
+        assertEquals(1, Registry.newClassId(HELLO_WORLD, classLoader));
+
+        invokeMainMethodUsingReflection(HELLO_WORLD.replace('/', '.'), cached);
+        // The println on line 25
+        assertEquals(1, Registry.getCoverageData().getLinesVisited(1)[24]);
+    }
+
+    private RevocClassTransformer newTransformer(Properties options) {
+        return new RevocClassTransformer(new String[]{"no.kantega.labs.helloworld."}, options);
+    }
+}
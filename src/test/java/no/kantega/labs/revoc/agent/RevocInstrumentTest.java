@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.agent;
+
+import no.kantega.labs.revoc.registry.Registry;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static no.kantega.labs.revoc.demo.ClassUtils.invokeMainMethodUsingReflection;
+import static org.junit.Assert.*;
+
+/**
+ */
+public class RevocInstrumentTest {
+
+    private static final String HELLO_WORLD = "no/kantega/labs/helloworld/HelloWorld";
+    private static final String CLASS_WITH_LOGIC = "no/kantega/labs/helloworld/ClassWithLogic";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setup() {
+        Registry.resetRegistry();
+    }
+
+    @Test
+    public void instrumentedClassesShouldRecordCoverageWithTheWrittenRegistry() throws Exception {
+        File classes = folder.newFolder("classes");
+        FileUtils.writeByteArrayToFile(new File(classes, HELLO_WORLD + ".class"), readClass(HELLO_WORLD));
+        File jar = folder.newFile("app.jar");
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(jar));
+        zip.putNextEntry(new ZipEntry("META-INF/APP.SF"));
+        zip.closeEntry();
+        zip.putNextEntry(new ZipEntry(CLASS_WITH_LOGIC + ".class"));
+        zip.write(readClass(CLASS_WITH_LOGIC));
+        zip.closeEntry();
+        zip.close();
+        File output = folder.newFolder("output");
+
+        Properties options = new Properties();
+        options.setProperty("packages", "no.kantega.labs.helloworld.");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            new RevocInstrument(options, executor).instrument(Arrays.asList(jar, classes), output, null);
+        } finally {
+            executor.shutdown();
+        }
+
+        ZipFile instrumentedJar = new ZipFile(new File(output, "app.jar"));
+        assertNull(instrumentedJar.getEntry("META-INF/APP.SF"));
+        assertNotNull(instrumentedJar.getEntry(CLASS_WITH_LOGIC + ".class"));
+        instrumentedJar.close();
+
+        Properties properties = new Properties();
+        properties.load(new FileInputStream(new File(output, RevocInstrument.PROPERTIES_FILE)));
+        File registry = new File(properties.getProperty("registry"));
+
+        // What the Registry does when the instrumented JVM starts
+        Registry.resetRegistry();
+        Registry.load(new FileInputStream(registry));
+        assertEquals(Arrays.asList(CLASS_WITH_LOGIC, HELLO_WORLD), Arrays.asList(Registry.getCoverageData().getClassNames()));
+
+        byte[] helloWorld = FileUtils.readFileToByteArray(new File(output, "classes/" + HELLO_WORLD + ".class"));
+        invokeMainMethodUsingReflection(HELLO_WORLD.replace('/', '.'), helloWorld);
+        // The println on line 25
+        assertEquals(1, Registry.getCoverageData().getLinesVisited(1)[24]);
+    }
+
+    private byte[] readClass(String className) throws Exception {
+        return IOUtils.toByteArray(getClass().getClassLoader().getResourceAsStream(className + ".class"));
+    }
+}
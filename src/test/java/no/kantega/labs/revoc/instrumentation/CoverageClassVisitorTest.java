@@ -18,20 +18,31 @@ package no.kantega.labs.revoc.instrumentation;
 
 import no.kantega.labs.helloworld.HelloWorld;
 import no.kantega.labs.revoc.instrumentation.testclasses.ClassWithLongMethod;
+import no.kantega.labs.revoc.instrumentation.testclasses.ClassWithManyExits;
+import no.kantega.labs.revoc.instrumentation.testclasses.ClassWithThrowingCallee;
+import no.kantega.labs.revoc.instrumentation.testclasses.LoopingClass;
 import no.kantega.labs.revoc.instrumentation.testclasses.SimpleClass;
 import no.kantega.labs.revoc.instrumentation.testclasses.SyntheticClass;
+import no.kantega.labs.revoc.instrumentation.testclasses.ThrowingClass;
+import no.kantega.labs.revoc.registry.BranchPoint;
 import no.kantega.labs.revoc.registry.CoverageData;
 import no.kantega.labs.revoc.registry.Registry;
 import org.junit.Before;
 import org.junit.Test;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
+import java.util.BitSet;
 
+import static no.kantega.labs.revoc.demo.ClassUtils.getClassFromBytes;
 import static no.kantega.labs.revoc.demo.ClassUtils.invokeMainMethodUsingReflection;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -113,6 +124,524 @@ public class CoverageClassVisitorTest {
         }
     }
 
+    @Test
+    public void basicBlockProbesShouldGiveSameLineVisitsAsLineProbes() {
+        for (Class clazz : new Class[] {SimpleClass.class, ClassWithLongMethod.class}) {
+            for (final boolean trackTime : new boolean[]{true, false}) {
+                long[] lineVisits = linesVisited(clazz, ProbePlacement.LINES, trackTime);
+                long[] blockVisits = linesVisited(clazz, ProbePlacement.BASIC_BLOCKS, trackTime);
+
+                assertArrayEquals(lineVisits, blockVisits);
+            }
+        }
+    }
+
+    @Test
+    public void edgeProbesShouldGiveSameLineAndBranchVisitsAsLineProbes() {
+        for (Class clazz : new Class[] {SimpleClass.class, ClassWithLongMethod.class}) {
+            for (final boolean trackTime : new boolean[]{true, false}) {
+                long[] lineVisits = linesVisited(clazz, ProbePlacement.LINES, trackTime);
+                String lineBranches = branchVisits();
+                long[] edgeVisits = linesVisited(clazz, ProbePlacement.EDGES, trackTime);
+                String edgeBranches = branchVisits();
+
+                assertArrayEquals(lineVisits, edgeVisits);
+                assertEquals(lineBranches, edgeBranches);
+            }
+        }
+    }
+
+    @Test
+    public void edgeProbesShouldCountLinesBeforeExceptionsLeavingTheMethod() {
+        for (final boolean trackTime : new boolean[]{true, false}) {
+            long[] lineVisits = linesVisited(ClassWithThrowingCallee.class, ProbePlacement.LINES, trackTime);
+            String lineBranches = branchVisits();
+            long[] edgeVisits = linesVisited(ClassWithThrowingCallee.class, ProbePlacement.EDGES, trackTime);
+            String edgeBranches = branchVisits();
+
+            // Lines 41 and 42 run on every invocation, also when boom throws
+            assertEquals(10, edgeVisits[40]);
+            assertEquals(10, edgeVisits[41]);
+            assertEquals(5, edgeVisits[42]);
+            assertArrayEquals(lineVisits, edgeVisits);
+            assertEquals(lineBranches, edgeBranches);
+        }
+    }
+
+    @Test
+    public void hitOnlyCoverageShouldReportVisitedLinesOnce() {
+        for (Class clazz : new Class[] {SimpleClass.class, ClassWithLongMethod.class}) {
+            long[] lineVisits = linesVisited(clazz, ProbePlacement.LINES, false);
+
+            CoverageClassVisitor visitor = instrumentAndRun(clazz, HIT_ONLY);
+            long[] hits = Registry.getCoverageData().getLinesVisited(visitor.getClassId());
+
+            assertEquals(lineVisits.length, hits.length);
+            for (int l = 0; l < lineVisits.length; l++) {
+                assertEquals(Math.min(lineVisits[l], 1), hits[l]);
+            }
+        }
+    }
+
+    @Test
+    public void coveredHitOnlyMethodsShouldNotGetProbes() {
+        CoverageClassVisitor visitor = instrumentAndRun(SimpleClass.class, HIT_ONLY);
+        final int classId = visitor.getClassId();
+        long[] linesVisited = Registry.getCoverageData().getLinesVisited(classId);
+
+        // The constructor is never run, so only main is covered
+        assertEquals(2, visitor.getProbedMethodLines().size());
+
+        CoverageClassVisitor reinstrumented = new InstrumentationTemplate(SimpleClass.class) {
+            protected void configureClassVisitor(CoverageClassVisitor visitor) {
+                visitor.setHitOnly(true);
+                visitor.setCoveredLines(Registry.getHitLines(classId));
+            }
+
+            protected void registerClassInfo(int classId, CoverageClassVisitor visitor) {
+
+            }
+        }.run();
+
+        assertEquals(1, reinstrumented.getProbedMethodLines().size());
+        assertArrayEquals(linesVisited, Registry.getCoverageData().getLinesVisited(classId));
+    }
+
+    @Test
+    public void methodCoverageShouldStampInvokedMethods() {
+        long[] lineVisits = linesVisited(SimpleClass.class, ProbePlacement.LINES, false);
+
+        CoverageClassVisitor visitor = instrumentAndRun(SimpleClass.class, new Configuration() {
+            public void configure(CoverageClassVisitor visitor) {
+                visitor.setMethodCoverage(true);
+            }
+        });
+        CoverageData data = Registry.getCoverageData();
+        long[] methodTimes = data.getMethodVisitTimes(visitor.getClassId());
+
+        assertEquals(visitor.getMethodNames().size(), methodTimes.length);
+        for (int m = 0; m < methodTimes.length; m++) {
+            assertEquals(visitor.getMethodNames().get(m).equals("main"), methodTimes[m] != 0);
+        }
+        long[] visits = data.getLinesVisited(visitor.getClassId());
+        for (int l = 0; l < lineVisits.length; l++) {
+            assertEquals(Math.min(lineVisits[l], 1), visits[l]);
+        }
+    }
+
+    @Test
+    public void hitOnlyAndMethodCoverageClassesShouldBeReportedAsChanged() throws InterruptedException {
+        for (final boolean methodCoverage : new boolean[] {false, true}) {
+            final BitSet changed = new BitSet();
+            Registry.ChangeListener listener = new Registry.ChangeListener() {
+                public void onChange(BitSet bs) {
+                    synchronized (changed) {
+                        changed.or(bs);
+                    }
+                }
+            };
+            Registry.addChangeListener(listener);
+            try {
+                CoverageClassVisitor visitor = instrumentAndRun(SimpleClass.class, new Configuration() {
+                    public void configure(CoverageClassVisitor visitor) {
+                        visitor.setHitOnly(!methodCoverage);
+                        visitor.setMethodCoverage(methodCoverage);
+                    }
+                });
+
+                for (int wait = 0; wait < 30 && !isSet(changed, visitor.getClassId()); wait++) {
+                    Thread.sleep(Registry.CHECK_RESOLUTION_MILLIS);
+                }
+                assertTrue(isSet(changed, visitor.getClassId()));
+            } finally {
+                Registry.removeChangeListener(listener);
+            }
+        }
+    }
+
+    private static boolean isSet(BitSet bs, int index) {
+        synchronized (bs) {
+            return bs.get(index);
+        }
+    }
+
+    @Test
+    public void sampledCountsShouldBeScaledBySampleRate() {
+        for (Class clazz : new Class[] {SimpleClass.class, ClassWithLongMethod.class}) {
+            long[] lineVisits = linesVisited(clazz, ProbePlacement.LINES, false);
+
+            CoverageClassVisitor visitor = instrumentAndRun(clazz, 300, new Configuration() {
+                public void configure(CoverageClassVisitor visitor) {
+                    visitor.setSampleRate(3);
+                }
+            });
+            long[] sampled = Registry.getCoverageData().getLinesVisited(visitor.getClassId());
+
+            for (int l = 0; l < lineVisits.length; l++) {
+                assertEquals(lineVisits[l] > 0, sampled[l] > 0);
+                if (sampled[l] > 0) {
+                    assertEquals(0, sampled[l] % 3);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void reusedScratchArraysShouldCountEachInvocation() {
+        long[] lineVisits = linesVisited(ClassWithLongMethod.class, ProbePlacement.LINES, true);
+        String branchVisits = branchVisits();
+
+        CoverageClassVisitor visitor = instrumentAndRun(ClassWithLongMethod.class, 3, new Configuration() {
+            public void configure(CoverageClassVisitor visitor) {
+                visitor.setTrackBranches(true);
+            }
+        });
+        long[] repeated = Registry.getCoverageData().getLinesVisited(visitor.getClassId());
+
+        for (int l = 0; l < lineVisits.length; l++) {
+            assertEquals(lineVisits[l] > 0 ? lineVisits[l] * 3 : lineVisits[l], repeated[l]);
+        }
+        assertEquals(branchVisits.replace("1/0", "3/0").replace("1/1", "3/3"), branchVisits());
+    }
+
+    @Test
+    public void sharedExitFlushShouldGiveSameVisitsWithLessCode() {
+        for (Class clazz : new Class[] {SimpleClass.class, ClassWithLongMethod.class}) {
+            for (final boolean trackTime : new boolean[]{true, false}) {
+                final int[] classSizes = new int[2];
+                long[] lineVisits = null;
+                String branchVisits = null;
+                for (final boolean sharedExitFlush : new boolean[]{false, true}) {
+                    Configuration configuration = new Configuration() {
+                        public void configure(CoverageClassVisitor visitor) {
+                            visitor.setTrackTime(trackTime);
+                            visitor.setTrackBranches(true);
+                            visitor.setSharedExitFlush(sharedExitFlush);
+                        }
+                    };
+                    classSizes[sharedExitFlush ? 1 : 0] = instrument(clazz, configuration).length;
+                    CoverageClassVisitor visitor = instrumentAndRun(clazz, configuration);
+                    if (lineVisits == null) {
+                        lineVisits = Registry.getCoverageData().getLinesVisited(visitor.getClassId());
+                        branchVisits = branchVisits();
+                    } else {
+                        assertArrayEquals(lineVisits, Registry.getCoverageData().getLinesVisited(visitor.getClassId()));
+                        assertEquals(branchVisits, branchVisits());
+                    }
+                }
+                if (clazz == ClassWithLongMethod.class) {
+                    assertTrue(classSizes[1] < classSizes[0]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void timeAtExitShouldStampVisitedLines() {
+        for (Class clazz : new Class[] {SimpleClass.class, ClassWithLongMethod.class}) {
+            long[] lineVisits = null;
+            for (final boolean timeAtExit : new boolean[]{false, true}) {
+                Registry.time = 42;
+                CoverageClassVisitor visitor = instrumentAndRun(clazz, new Configuration() {
+                    public void configure(CoverageClassVisitor visitor) {
+                        visitor.setTimeAtExit(timeAtExit);
+                    }
+                });
+                CoverageData data = Registry.getCoverageData();
+                long[] visits = data.getLinesVisited(visitor.getClassId());
+                long[] times = data.getLinesVisitTimes(visitor.getClassId());
+                if (lineVisits == null) {
+                    lineVisits = visits;
+                } else {
+                    assertArrayEquals(lineVisits, visits);
+                }
+                for (int l = 0; l < visits.length; l++) {
+                    assertEquals(visits[l] > 0, times[l] != 0 && times[l] != -1);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void loopFlushShouldRegisterVisitsOfRunningMethods() {
+        final long[] loopVisits = new long[2];
+        new InstrumentationTemplate(LoopingClass.class) {
+            protected void configureClassVisitor(CoverageClassVisitor visitor) {
+                visitor.setLoopFlushInterval(1000);
+            }
+
+            protected void executeCode(ClassWriter cw, Class clazz) throws ClassNotFoundException {
+                final Class looping = getClassFromBytes(clazz.getName(), cw.toByteArray());
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            looping.getMethod("main", String[].class).invoke(null, new Object[]{new String[0]});
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+                try {
+                    thread.start();
+                    // The loop body is on line 30
+                    for (int i = 0; i < 500 && loopVisits[0] == 0; i++) {
+                        Registry.time++;
+                        Thread.sleep(10);
+                        loopVisits[0] = Registry.getCoverageData().getLinesVisited(0)[29];
+                    }
+                    looping.getField("stop").setBoolean(null, true);
+                    thread.join();
+                    assertEquals(looping.getField("iterations").getLong(null), Registry.getCoverageData().getLinesVisited(0)[29]);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }.run();
+
+        assertTrue(loopVisits[0] > 0);
+    }
+
+    @Test
+    public void exceptionExitFlushShouldOnlyWrapMethodsThatCanThrow() {
+        for (final boolean exceptionExitFlush : new boolean[]{true, false}) {
+            Configuration configuration = new Configuration() {
+                public void configure(CoverageClassVisitor visitor) {
+                    visitor.setExceptionExitFlush(exceptionExitFlush);
+                }
+            };
+            ClassNode instrumented = new ClassNode();
+            new ClassReader(instrument(ThrowingClass.class, configuration)).accept(instrumented, 0);
+            instrumentAndRun(ThrowingClass.class, configuration);
+
+            for (Object method : instrumented.methods) {
+                MethodNode methodNode = (MethodNode) method;
+                if (methodNode.name.equals("<clinit>")) {
+                    // Injected to fetch the class counters, without probes
+                    continue;
+                }
+                boolean wrapped = exceptionExitFlush && !methodNode.name.equals("twice");
+                int handlers = methodNode.name.equals("main") ? 1 : 0;
+                assertEquals(methodNode.name, handlers + (wrapped ? 1 : 0), methodNode.tryCatchBlocks.size());
+            }
+
+            // Invocations of check ending with an exception are only registered by the catch-all handler
+            long[] visits = Registry.getCoverageData().getLinesVisited(0);
+            assertEquals(exceptionExitFlush ? 10 : 5, visits[34]);
+            assertEquals(exceptionExitFlush ? 5 : 0, visits[35]);
+            assertEquals(5, visits[41]);
+        }
+    }
+
+    @Test
+    public void java7ClassesShouldPassTheTypeCheckingVerifier() throws ClassNotFoundException {
+        for (Class clazz : new Class[] {SimpleClass.class, ClassWithLongMethod.class, ThrowingClass.class, LoopingClass.class}) {
+            for (int configuration = 0; configuration < 8; configuration++) {
+                Registry.resetRegistry();
+                final int c = configuration;
+                final byte[][] instrumented = new byte[1][];
+                new InstrumentationTemplate(clazz) {
+                    protected void configureClassVisitor(CoverageClassVisitor visitor) {
+                        visitor.setTrackBranches(true);
+                        visitor.setTrackTime(c != 1);
+                        visitor.setSharedExitFlush(c == 1);
+                        visitor.setSampleRate(c == 1 || c == 3 || c == 7 ? 3 : 1);
+                        visitor.setProbePlacement(c == 2 ? ProbePlacement.EDGES : c == 3 ? ProbePlacement.BASIC_BLOCKS : ProbePlacement.LINES);
+                        visitor.setLoopFlushInterval(c == 3 ? 1000 : 0);
+                        visitor.setTimeAtExit(c == 4);
+                        visitor.setJitBudget(c == 4 ? new JitBudget() : null);
+                        visitor.setHitOnly(c == 6);
+                        visitor.setMethodCoverage(c == 5 || c == 7);
+                    }
+
+                    protected ClassReader readClass(InputStream inputStream) throws IOException {
+                        // Class files from Java 7 on have no fall back to the old verifier on missing or wrong frames
+                        byte[] bytes = new ClassReader(inputStream).b.clone();
+                        bytes[7] = Opcodes.V1_7;
+                        return new ClassReader(bytes);
+                    }
+
+                    protected void executeCode(ClassWriter cw, Class clazz) {
+                        instrumented[0] = cw.toByteArray();
+                    }
+                }.run();
+
+                Class<?> loaded = getClassFromBytes(clazz.getName(), instrumented[0]);
+                Class.forName(clazz.getName(), true, loaded.getClassLoader());
+            }
+        }
+    }
+
+    @Test
+    public void prescannedMethodsShouldBeInstrumentedAsFromTheirTree() {
+        for (Class clazz : new Class[] {SimpleClass.class, ClassWithLongMethod.class, ThrowingClass.class}) {
+            for (final boolean trackTime : new boolean[]{true, false}) {
+                final byte[][] instrumented = new byte[2][];
+                for (final boolean prescan : new boolean[]{false, true}) {
+                    Registry.resetRegistry();
+                    new InstrumentationTemplate(clazz) {
+                        protected void configureClassVisitor(CoverageClassVisitor visitor) {
+                            visitor.setTrackTime(trackTime);
+                            visitor.setTrackBranches(true);
+                            visitor.setJitBudget(new JitBudget());
+                        }
+
+                        protected void prescan(CoverageClassVisitor visitor, ClassReader cr) {
+                            if (prescan) {
+                                super.prescan(visitor, cr);
+                            }
+                        }
+
+                        protected void executeCode(ClassWriter cw, Class clazz) {
+                            instrumented[prescan ? 1 : 0] = cw.toByteArray();
+                        }
+                    }.run();
+                }
+                assertArrayEquals(instrumented[0], instrumented[1]);
+            }
+        }
+    }
+
+    @Test
+    public void methodsExceedingTheHugeMethodLimitShouldBeDowngraded() {
+        long[] lineVisits = null;
+        for (final boolean budget : new boolean[]{false, true}) {
+            CoverageClassVisitor visitor = instrumentAndRun(ClassWithLongMethod.class, new Configuration() {
+                public void configure(CoverageClassVisitor visitor) {
+                    visitor.setTrackBranches(true);
+                    visitor.setJitBudget(budget ? new JitBudget() : null);
+                }
+            });
+            if (lineVisits == null) {
+                assertTrue(visitor.getStrategyDowngrades().isEmpty());
+                lineVisits = Registry.getCoverageData().getLinesVisited(visitor.getClassId());
+            } else {
+                assertEquals(1, visitor.getStrategyDowngrades().size());
+                assertTrue(visitor.getStrategyDowngrades().get(0).contains(".go()I: "));
+                assertArrayEquals(lineVisits, Registry.getCoverageData().getLinesVisited(visitor.getClassId()));
+            }
+        }
+
+        CoverageClassVisitor visitor = instrumentAndRun(SimpleClass.class, new Configuration() {
+            public void configure(CoverageClassVisitor visitor) {
+                visitor.setJitBudget(new JitBudget());
+            }
+        });
+        assertTrue(visitor.getStrategyDowngrades().isEmpty());
+    }
+
+    @Test
+    public void methodsWithinAnInliningLimitShouldBeDowngradedToStayWithinIt() {
+        long[] lineVisits = null;
+        for (final boolean budget : new boolean[]{false, true}) {
+            CoverageClassVisitor visitor = instrumentAndRun(ClassWithManyExits.class, new Configuration() {
+                public void configure(CoverageClassVisitor visitor) {
+                    visitor.setTrackBranches(true);
+                    // classify is within FreqInlineSize, and only stays within it with a shared exit
+                    visitor.setJitBudget(budget ? new JitBudget(20, 500, 8000) : null);
+                }
+            });
+            if (lineVisits == null) {
+                assertTrue(visitor.getStrategyDowngrades().isEmpty());
+                lineVisits = Registry.getCoverageData().getLinesVisited(visitor.getClassId());
+            } else {
+                assertEquals(1, visitor.getStrategyDowngrades().size());
+                String downgrade = visitor.getStrategyDowngrades().get(0);
+                assertTrue(downgrade.contains(".classify(I)I: "));
+                assertTrue(downgrade.contains("FreqInlineSize (500), using local variables and a shared exit"));
+                assertArrayEquals(lineVisits, Registry.getCoverageData().getLinesVisited(visitor.getClassId()));
+            }
+        }
+    }
+
+    @Test
+    public void methodsExceedingTheHugeMethodLimitWithEveryStrategyShouldStillBeCounted() {
+        long[] lineVisits = linesVisited(ClassWithManyExits.class, ProbePlacement.LINES, false);
+
+        CoverageClassVisitor visitor = instrumentAndRun(ClassWithManyExits.class, new Configuration() {
+            public void configure(CoverageClassVisitor visitor) {
+                visitor.setJitBudget(new JitBudget(20, 20, 100));
+            }
+        });
+        assertFalse(visitor.getStrategyDowngrades().isEmpty());
+        for (String downgrade : visitor.getStrategyDowngrades()) {
+            assertTrue(downgrade.endsWith("which still exceeds the huge method limit"));
+        }
+        assertArrayEquals(lineVisits, Registry.getCoverageData().getLinesVisited(visitor.getClassId()));
+    }
+
+    private String branchVisits() {
+        StringBuilder visits = new StringBuilder();
+        // The registry was reset before instrumenting, so the class has id 0
+        for (BranchPoint branchPoint : Registry.getCoverageData().getBranchPoints(0)) {
+            visits.append(branchPoint.getLinenumber()).append(':').append(branchPoint.getBefore()).append('/').append(branchPoint.getAfter()).append(' ');
+        }
+        return visits.toString();
+    }
+
+    private static final Configuration HIT_ONLY = new Configuration() {
+        public void configure(CoverageClassVisitor visitor) {
+            visitor.setHitOnly(true);
+        }
+    };
+
+    /**
+     * Sets the options a test instruments its class with
+     */
+    interface Configuration {
+        void configure(CoverageClassVisitor visitor);
+    }
+
+    /**
+     * Resets the registry, then instruments the class and runs its main method once
+     */
+    private CoverageClassVisitor instrumentAndRun(Class clazz, Configuration configuration) {
+        return instrumentAndRun(clazz, 1, configuration);
+    }
+
+    private CoverageClassVisitor instrumentAndRun(Class clazz, final int invocations, final Configuration configuration) {
+        Registry.resetRegistry();
+        return new InstrumentationTemplate(clazz) {
+            protected void configureClassVisitor(CoverageClassVisitor visitor) {
+                configuration.configure(visitor);
+            }
+
+            protected void executeCode(ClassWriter cw, Class clazz) throws InvocationTargetException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException {
+                invokeMainMethodUsingReflection(clazz.getName(), cw.toByteArray(), invocations);
+            }
+        }.run();
+    }
+
+    /**
+     * @return the instrumented class, which is not run
+     */
+    private byte[] instrument(Class clazz, final Configuration configuration) {
+        Registry.resetRegistry();
+        final byte[][] instrumented = new byte[1][];
+        new InstrumentationTemplate(clazz) {
+            protected void configureClassVisitor(CoverageClassVisitor visitor) {
+                configuration.configure(visitor);
+            }
+
+            protected void executeCode(ClassWriter cw, Class clazz) {
+                instrumented[0] = cw.toByteArray();
+            }
+        }.run();
+        return instrumented[0];
+    }
+
+    private long[] linesVisited(Class clazz, final ProbePlacement probePlacement, final boolean trackTime) {
+        CoverageClassVisitor visitor = instrumentAndRun(clazz, new Configuration() {
+            public void configure(CoverageClassVisitor visitor) {
+                visitor.setProbePlacement(probePlacement);
+                visitor.setTrackTime(trackTime);
+                visitor.setTrackBranches(true);
+            }
+        });
+        assertEquals(probePlacement != ProbePlacement.LINES, visitor.getBlockLines().length > 0);
+        return Registry.getCoverageData().getLinesVisited(visitor.getClassId());
+    }
+
     @Test
     public void syntheticMethodsShouldNotBeImplemented() {
         final Class clazz = SyntheticClass.Inner.class;
@@ -158,10 +687,11 @@ public class CoverageClassVisitorTest {
 
                 int classId = Registry.newClassId(clazz.getName().replace('.', '/'), clazz.getClassLoader());
 
-                ClassReader cr = new ClassReader(inputStream);
+                ClassReader cr = readClass(inputStream);
                 ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
                 CoverageClassVisitor visitor = new CoverageClassVisitor(cw, classId);
                 configureClassVisitor(visitor);
+                prescan(visitor, cr);
                 cr.accept(visitor, ClassReader.EXPAND_FRAMES);
                 registerClassInfo(classId, visitor);
 
@@ -182,6 +712,14 @@ public class CoverageClassVisitorTest {
 
         }
 
+        protected ClassReader readClass(InputStream inputStream) throws IOException {
+            return new ClassReader(inputStream);
+        }
+
+        protected void prescan(CoverageClassVisitor visitor, ClassReader cr) {
+            visitor.prescan(cr);
+        }
+
         protected void executeCode(ClassWriter cw, Class clazz) throws InvocationTargetException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException {
             invokeMainMethodUsingReflection(clazz.getName(), cw.toByteArray());
         }
@@ -189,6 +727,20 @@ public class CoverageClassVisitorTest {
         protected void registerClassInfo(int classId, CoverageClassVisitor visitor) {
             Registry.registerClass(HelloWorld.class.getName(), HelloWorld.class.getClassLoader(), visitor.getSource());
             Registry.registerLines(classId, visitor.getLineIndexes());
+            if (visitor.isHitOnly()) {
+                Registry.registerLineHits(classId);
+            }
+            if (visitor.isMethodCoverage()) {
+                Registry.registerMethodHits(classId, visitor.getMethodLines());
+            }
+            if (visitor.getSampleRate() > 1) {
+                Registry.registerSampleRate(classId, visitor.getSampleRate());
+            }
+            if (visitor.getFlowGraphs().isEmpty()) {
+                Registry.registerBlocks(classId, visitor.getBlockLines());
+            } else {
+                Registry.registerFlowGraphs(classId, visitor.getBlockLines(), visitor.getFlowGraphs(), visitor.getNumEdgeCounters());
+            }
             Registry.registerBranchPoints(classId, visitor.getBranchPoints());
         }
 
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.instrumentation.testclasses;
+
+public class ClassWithManyExits {
+
+    public static void main(String[] args) {
+        for (int i = -1; i < 200; i += 7) {
+            classify(i);
+        }
+    }
+
+    static int classify(int i) {
+        if (i < 0) {
+            return -1;
+        }
+        if (i == 0) {
+            return 0;
+        }
+        if (i < 10) {
+            return 1;
+        }
+        if (i < 100) {
+            return 2;
+        }
+        return 3;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.instrumentation.testclasses;
+
+/*
+ *
+ */
+public class ClassWithThrowingCallee {
+
+    public static void main(String[] args) {
+        int[] values = new int[5];
+        for (int i = 0; i < 10; i++) {
+            try {
+                run(i);
+            } catch (IllegalArgumentException e) {
+                // Every other invocation ends with an exception from the callee
+            }
+            try {
+                read(values, i);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                // Half of the invocations read past the end of the array
+            }
+        }
+    }
+
+    static void run(int i) {
+        int x = i;
+        boom(x);
+        x++;
+        System.out.println(x);
+    }
+
+    static void boom(int i) {
+        if ((i & 1) == 0) {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    static int read(int[] values, int i) {
+        if (i < 0) {
+            return 0;
+        }
+        return values[i];
+    }
+}
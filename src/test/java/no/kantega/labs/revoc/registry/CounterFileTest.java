@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 Kantega AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.kantega.labs.revoc.registry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Each attached CounterFile is a separate mapping of the file, like the mapping of another process
+ */
+public class CounterFileTest {
+
+    private File file;
+
+    @Before
+    public void setup() throws IOException {
+        file = File.createTempFile("revoc", ".counters");
+        file.delete();
+        file.deleteOnExit();
+    }
+
+    @Test
+    public void attachedFilesShouldShareTheCountersOfAClass() throws IOException {
+        CounterFile first = CounterFile.attach(file, 1 << 16);
+        CounterFile second = CounterFile.attach(file, 1 << 16);
+
+        CounterFile.Counters firstCounters = first.addClass("com/example/Shared", 42, new int[] {3, 5});
+        CounterFile.Counters secondCounters = second.addClass("com/example/Shared", 42, new int[] {3, 5});
+        second.addClass("com/example/Shared", 43, new int[] {3, 5});
+        first.add(firstCounters, new long[] {0, 2}, new long[] {0, 500});
+        second.add(secondCounters, new long[] {0, 3}, new long[] {0, 1000});
+
+        CounterFile reader = CounterFile.open(file);
+        assertEquals(2, reader.getClassCount());
+        assertEquals("com/example/Shared", reader.getClassName(0));
+        assertEquals(42, reader.getClassHash(0));
+        assertArrayEquals(new int[] {3, 5}, reader.getLines(0));
+        assertEquals(5, reader.getVisits(0, 1));
+        assertEquals(1000, reader.getTime(0, 1));
+        assertEquals(43, reader.getClassHash(1));
+        assertEquals(0, reader.getVisits(1, 1));
+
+        CounterFile later = CounterFile.attach(file, 1 << 16);
+        later.add(later.addClass("com/example/Shared", 42, new int[] {3, 5}), new long[] {0, 1}, new long[] {0, 200});
+        assertEquals(6, reader.getVisits(0, 1));
+        assertEquals(1000, reader.getTime(0, 1));
+        assertEquals(2, reader.getClassCount());
+    }
+
+    @Test
+    public void classesAddedConcurrentlyShouldGetOneRecordEach() throws Exception {
+        final int classes = 200;
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final CounterFile counterFile = CounterFile.attach(file, 1 << 20);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int c = 0; c < classes; c++) {
+                            CounterFile.Counters counters = counterFile.addClass("com/example/Class" + c, c, new int[] {1, 2, 3});
+                            counterFile.add(counters, new long[] {0, 0, 1}, new long[3]);
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        CounterFile reader = CounterFile.open(file);
+        assertEquals(classes, reader.getClassCount());
+        Set<String> names = new HashSet<String>();
+        for (int c = 0; c < classes; c++) {
+            names.add(reader.getClassName(c));
+            assertEquals(threads.length, reader.getVisits(c, 2));
+        }
+        assertEquals(classes, names.size());
+    }
+
+    @Test
+    public void recordsLeftByADeadProcessShouldBeSkipped() throws IOException {
+        CounterFile.attach(file, 1 << 16).addClass("com/example/Shared", 42, new int[] {3, 5});
+        // Clear the state of the first record, after the 64 byte header and its size, as if its writer died
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(64 + 4);
+        raf.writeInt(0);
+        raf.close();
+
+        CounterFile counterFile = CounterFile.attach(file, 1 << 16);
+        counterFile.add(counterFile.addClass("com/example/Shared", 42, new int[] {3, 5}), new long[] {1, 0}, new long[] {100, 0});
+        counterFile.addClass("com/example/Other", 43, new int[] {1});
+
+        CounterFile reader = CounterFile.open(file);
+        assertEquals(2, reader.getClassCount());
+        assertEquals("com/example/Shared", reader.getClassName(0));
+        assertEquals(1, reader.getVisits(0, 0));
+        assertEquals("com/example/Other", reader.getClassName(1));
+    }
+
+    @Test
+    public void aFullFileShouldNotTakeMoreClasses() throws IOException {
+        CounterFile counterFile = CounterFile.create(file, 256);
+        assertNotNull(counterFile.addClass("com/example/Small", 1, new int[] {1}));
+        assertNull(counterFile.addClass("com/example/Large", 1, new int[100]));
+        assertEquals(1, CounterFile.open(file).getClassCount());
+    }
+}
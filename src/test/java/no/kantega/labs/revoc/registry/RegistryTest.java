@@ -21,8 +21,12 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import static org.junit.Assert.*;
 
@@ -90,6 +94,210 @@ public class RegistryTest {
 
 
 
+    }
+
+    @Test
+    public void visitsFromManyThreadsShouldBeSummedAcrossStripes() throws InterruptedException {
+        Registry.setCounterStripes(4);
+        try {
+            visitsFromManyThreadsShouldBeSummed();
+        } finally {
+            Registry.setCounterStripes(1);
+        }
+    }
+
+    private void visitsFromManyThreadsShouldBeSummed() throws InterruptedException {
+        final int classId = Registry.registerClass("class", getClass().getClassLoader(), "source");
+        Registry.registerLines(classId, new int[] {1,2,3,4});
+
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        Registry.registerLineVisited(Registry.getLineVisits(classId), 1, 1);
+                        Registry.registerLineTimeVisited(Registry.getLineVisits(classId), Registry.getLineTimes(classId), 3, 2, 42);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertArrayEquals(new long[] {0,8000,0,16000}, Registry.getCoverageData().getLinesVisited(classId));
+        assertEquals(42, Registry.getCoverageData().getLinesVisitTimes(classId)[3]);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Registry.save(out);
+        Registry.load(new ByteArrayInputStream(out.toByteArray()));
+
+        assertArrayEquals(new long[] {0,8000,0,16000}, Registry.getCoverageData().getLinesVisited(classId));
+    }
+
+    @Test
+    public void branchVisitsShouldBeReportedOnSnapshotBranchPoints() throws InterruptedException {
+        final int classId = Registry.registerClass("class", getClass().getClassLoader(), "source");
+        Registry.registerLines(classId, new int[] {1,2,3,4});
+        Registry.registerBranchPoints(classId, Arrays.asList(new BranchPoint(0, 1), new BranchPoint(0, 3)));
+
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        Registry.registerBranchVisits(Registry.getBranchVisits(classId), 1, 2, 1);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        BranchPoint[] branchPoints = Registry.getCoverageData().getBranchPoints(classId);
+        assertEquals(0, branchPoints[0].getBefore());
+        assertEquals(16000, branchPoints[1].getBefore());
+        assertEquals(8000, branchPoints[1].getAfter());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Registry.save(out);
+        Registry.load(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(8000, Registry.getCoverageData().getBranchPoints(classId)[1].getAfter());
+    }
+
+    @Test
+    public void classesRegisteredFromManyThreadsShouldGetDistinctIds() throws InterruptedException {
+        final int firstId = Registry.registerClass("first", getClass().getClassLoader(), "first");
+        Registry.registerLines(firstId, new int[] {1});
+        AtomicLongArray firstCounters = Registry.getLineVisits(firstId);
+
+        final int perThread = ClassTable.SEGMENT_SIZE / 2;
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        int classId = Registry.registerClass("class" + thread + "_" + i, getClass().getClassLoader(), "source");
+                        Registry.registerLines(classId, new int[] {1, 2});
+                        Registry.registerLineVisited(classId, 1);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int numClasses = 1 + threads.length * perThread;
+        CoverageData data = Registry.getCoverageData();
+        assertEquals(numClasses, data.getClassNames().length);
+        assertEquals(numClasses, new HashSet<String>(Arrays.asList(data.getClassNames())).size());
+        for (int c = 1; c < numClasses; c++) {
+            assertArrayEquals(new long[] {0, 1}, data.getLinesVisited(c));
+        }
+        assertEquals(numClasses, Registry.newClassId("someclass", getClass().getClassLoader()));
+        assertSame(firstCounters, Registry.getLineVisits(firstId));
+    }
+
+    @Test
+    public void incrementalSnapshotsShouldOnlyCopyChangedClasses() {
+        int first = Registry.registerClass("first", getClass().getClassLoader(), "first");
+        Registry.registerLines(first, new int[] {1, 2});
+        Registry.registerMethods(first, Arrays.asList("a"), Arrays.asList("()V"));
+        int second = Registry.registerClass("second", getClass().getClassLoader(), "second");
+        Registry.registerLines(second, new int[] {1, 2});
+        Registry.registerMethods(second, Arrays.asList("a"), Arrays.asList("()V"));
+
+        CoverageData snapshot = Registry.getCoverageData(null, null);
+        long[] firstVisits = snapshot.getLinesVisited(first);
+        long[] secondVisits = snapshot.getLinesVisited(second);
+
+        Registry.registerLineVisited(first, 1);
+        Registry.registerLineVisited(second, 1);
+        int third = Registry.registerClass("third", getClass().getClassLoader(), "third");
+        Registry.registerLines(third, new int[] {3});
+        Registry.registerLineVisited(third, 0);
+        BitSet changed = new BitSet();
+        changed.set(first);
+
+        snapshot = Registry.getCoverageData(snapshot, changed);
+
+        assertSame(firstVisits, snapshot.getLinesVisited(first));
+        assertArrayEquals(new long[] {0, 1}, snapshot.getLinesVisited(first));
+        assertSame(secondVisits, snapshot.getLinesVisited(second));
+        assertArrayEquals(new long[] {0, 0}, snapshot.getLinesVisited(second));
+        assertArrayEquals(new long[] {-1, -1, 1}, snapshot.getLinesVisited(third));
+        assertEquals("third", snapshot.getClassNames()[third]);
+
+        Registry.registerLineVisited(third, 0);
+        snapshot = Registry.getCoverageData(snapshot, new BitSet());
+
+        // Classes registered without methods are taken again until they have them
+        assertArrayEquals(new long[] {-1, -1, 2}, snapshot.getLinesVisited(third));
+        assertArrayEquals(new long[] {0, 1}, Registry.getCoverageData().getLinesVisited(second));
+    }
+
+    @Test
+    public void lineCountersShouldBeWrittenToTheCounterFile() throws IOException {
+        File file = File.createTempFile("revoc", ".counters");
+        file.deleteOnExit();
+        Registry.mapCounters(file, false);
+        try {
+            int classId = Registry.registerClass("com/example/Counted", getClass().getClassLoader(), "Counted.java");
+            Registry.registerLines(classId, new int[] {3, 5});
+            CounterFile reader = CounterFile.open(file);
+            assertEquals(1, reader.getClassCount());
+            assertEquals("com/example/Counted", reader.getClassName(0));
+            assertArrayEquals(new int[] {3, 5}, reader.getLines(0));
+
+            Registry.registerLineTimeVisited(Registry.getLineVisits(classId), Registry.getLineTimes(classId), 1, 2, 1000);
+            Registry.writeCounters();
+            Registry.registerLineVisited(classId, 1);
+            Registry.writeCounters();
+
+            assertEquals(0, reader.getVisits(0, 0));
+            assertEquals(3, reader.getVisits(0, 1));
+            assertEquals(1000, reader.getTime(0, 1));
+        } finally {
+            Registry.mapCounters(null, false);
+        }
+    }
+
+    @Test
+    public void touchedClassesShouldBeDrainedOnce() {
+        TouchedClasses touches = new TouchedClasses();
+        int[] ids = {0, 63, 64, 1023, 1024, 70000, ClassTable.MAX_CLASSES - 1};
+        for (int id : ids) {
+            touches.touch(id);
+            touches.touch(id);
+        }
+
+        BitSet drained = new BitSet();
+        touches.drainTo(drained);
+
+        BitSet expected = new BitSet();
+        for (int id : ids) {
+            expected.set(id);
+        }
+        assertEquals(expected, drained);
+
+        drained.clear();
+        touches.drainTo(drained);
+        assertTrue(drained.isEmpty());
+
+        touches.touch(64);
+        touches.drainTo(drained);
+        assertEquals(1, drained.cardinality());
+        assertTrue(drained.get(64));
     }
 
     class TestChangeListener implements Registry.ChangeListener {